@@ -5,17 +5,30 @@ public class BasicBlocks {
     private Block currentBlock;
     private Map<String, Block> labeledBlocks;
     private Map<String, Set<Block>> labelListeners;
+    private List<Block> blocks;
+
+    // frozen form of the graph: blocks holding commands are numbered in command order,
+    // successors/predecessors of block b are succs[succOffsets[b] .. succOffsets[b + 1])
+    private Block[] blockById;
+    private int[] blockFirst;
+    private int[] blockLast;
+    private int[] blockOf;
+    private int[] succOffsets;
+    private int[] succs;
+    private int[] predOffsets;
+    private int[] preds;
 
     public BasicBlocks() {
         startingBlock = null;
         currentBlock = null;
         labeledBlocks = new HashMap<>();
         labelListeners = new HashMap<>();
+        blocks = new ArrayList<>();
     }
 
     public void startBasicBlock(String label) {
         if (currentBlock == null || !currentBlock.isEmpty()) {
-            Block newBlock = new Block();
+            Block newBlock = newBlock();
             if (startingBlock == null) startingBlock = newBlock;
             if (currentBlock != null) currentBlock.addNextBlock(newBlock);
             currentBlock = newBlock;
@@ -24,7 +37,7 @@ public class BasicBlocks {
         labeledBlocks.put(label, currentBlock);
 
         for (Block listener : labelListeners.getOrDefault(label, new HashSet<>())) {
-            listener.nextBlocks.add(currentBlock);
+            listener.addNextBlock(currentBlock);
         }
     }
 
@@ -37,14 +50,20 @@ public class BasicBlocks {
             labelListeners.get(jumpLabel).add(currentBlock);
         }
 
-        Block newBlock = new Block();
+        Block newBlock = newBlock();
         if (isConditional) currentBlock.addNextBlock(newBlock);
 
         currentBlock = newBlock;
     }
 
     public void endBasicBlock() {
-        currentBlock = new Block();
+        currentBlock = newBlock();
+    }
+
+    private Block newBlock() {
+        Block block = new Block();
+        blocks.add(block);
+        return block;
     }
 
     public void addCommand(IRCommand command) {
@@ -58,15 +77,124 @@ public class BasicBlocks {
         return startingBlock;
     }
 
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    public void freeze(List<IRCommand> commands) {
+        List<Block> ordered = new ArrayList<>();
+        blockOf = new int[commands.size()];
+        for (Block block : blocks)
+            block.id = -1;
+        for (int i = 0; i < commands.size(); ++i) {
+            Block block = commands.get(i).getBlock();
+            if (block.id == -1) {
+                block.id = ordered.size();
+                ordered.add(block);
+            }
+            blockOf[i] = block.id;
+        }
+
+        int numBlocks = ordered.size();
+        blockById = ordered.toArray(new Block[0]);
+        blockFirst = new int[numBlocks];
+        blockLast = new int[numBlocks];
+        for (int b = numBlocks - 1, i = commands.size() - 1; b >= 0; --b) {
+            blockLast[b] = i;
+            while (i >= 0 && blockOf[i] == b) --i;
+            blockFirst[b] = i + 1;
+        }
+
+        int[][] next = new int[numBlocks][];
+        for (int b = 0; b < numBlocks; ++b)
+            next[b] = successorIds(blockById[b]);
+
+        int[] numPreds = new int[numBlocks];
+        succOffsets = new int[numBlocks + 1];
+        for (int b = 0; b < numBlocks; ++b) {
+            succOffsets[b + 1] = succOffsets[b] + next[b].length;
+            for (int s : next[b]) ++numPreds[s];
+        }
+        succs = new int[succOffsets[numBlocks]];
+        for (int b = 0; b < numBlocks; ++b)
+            System.arraycopy(next[b], 0, succs, succOffsets[b], next[b].length);
+
+        predOffsets = new int[numBlocks + 1];
+        for (int b = 0; b < numBlocks; ++b)
+            predOffsets[b + 1] = predOffsets[b] + numPreds[b];
+        preds = new int[predOffsets[numBlocks]];
+        int[] fill = Arrays.copyOf(predOffsets, numBlocks);
+        for (int b = 0; b < numBlocks; ++b)
+            for (int s : next[b])
+                preds[fill[s]++] = b;
+    }
+
+    // empty blocks never hold a command, edges into them are forwarded to their own successors
+    private int[] successorIds(Block block) {
+        Set<Integer> ids = new TreeSet<>();
+        Set<Block> visited = new HashSet<>();
+        Deque<Block> pending = new ArrayDeque<>(block.getNextBlocks());
+        while (!pending.isEmpty()) {
+            Block next = pending.poll();
+            if (!visited.add(next)) continue;
+            if (next.id != -1) ids.add(next.id);
+            else pending.addAll(next.getNextBlocks());
+        }
+        return ids.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public int getNumBlocks() {
+        return blockById.length;
+    }
+
+    public Block getBlock(int id) {
+        return blockById[id];
+    }
+
+    public int getBlockOf(int command) {
+        return blockOf[command];
+    }
+
+    public int getFirstCommand(int block) {
+        return blockFirst[block];
+    }
+
+    public int getLastCommand(int block) {
+        return blockLast[block];
+    }
+
+    public int getNumSuccessors(int block) {
+        return succOffsets[block + 1] - succOffsets[block];
+    }
+
+    public int getSuccessor(int block, int k) {
+        return succs[succOffsets[block] + k];
+    }
+
+    public int getNumPredecessors(int block) {
+        return predOffsets[block + 1] - predOffsets[block];
+    }
+
+    public int getPredecessor(int block, int k) {
+        return preds[predOffsets[block] + k];
+    }
+
     public class Block {
+        private int id = -1;
         private Set<Block> nextBlocks;
+        private Set<Block> prevBlocks;
         private List<IRCommand> commands;
 
         public Block() {
             nextBlocks = new HashSet<>();
+            prevBlocks = new HashSet<>();
             commands = new ArrayList<>();
         }
 
+        public int getId() {
+            return id;
+        }
+
         public void setCommands(List<IRCommand> commands) {
             this.commands = commands;
         }
@@ -75,8 +203,13 @@ public class BasicBlocks {
             return nextBlocks;
         }
 
+        public Set<Block> getPrevBlocks() {
+            return prevBlocks;
+        }
+
         public void addNextBlock(Block nextBlock) {
             nextBlocks.add(nextBlock);
+            nextBlock.prevBlocks.add(this);
         }
 
         public List<IRCommand> getCommands() {
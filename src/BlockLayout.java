@@ -0,0 +1,299 @@
+import java.util.*;
+
+public class BlockLayout {
+    // a branch closing a loop is taken about this often, one leaving it about as often falls through
+    private final static double LOOP_BRANCH_PROBABILITY = 0.9;
+    // blocks in loops run about ten times as often per level
+    private final static int LOOP_FREQUENCY = 10;
+    private final static int MAX_LOOP_DEPTH = 3;
+
+    private final Class c;
+    private final Statistics statistics;
+    private final Profile profile;
+    private int counter;
+
+    public BlockLayout(Class c, Statistics statistics, Profile profile) {
+        this.c = c;
+        this.statistics = statistics;
+        this.profile = profile;
+    }
+
+    public void layout() {
+        for (String name : new ArrayList<>(c.getFunctions().keySet()))
+            c.addFunction(layout(c.getFunctions().get(name)));
+    }
+
+    private static boolean isLabel(IRCommand command) {
+        return command instanceof LabelCommand;
+    }
+
+    // where control goes after every block: the block a goto or branch jumps to, and the one it falls into,
+    // -1 when there is none and the number of blocks when it falls off the end of the function
+    private static class Edges {
+        final int[] jump;
+        final int[] fall;
+        final boolean[] conditional;
+
+        Edges(int numBlocks) {
+            jump = new int[numBlocks];
+            fall = new int[numBlocks];
+            conditional = new boolean[numBlocks];
+        }
+    }
+
+    private static class Edge {
+        final int from;
+        final int to;
+        final double weight;
+
+        Edge(int from, int to, double weight) {
+            this.from = from;
+            this.to = to;
+            this.weight = weight;
+        }
+    }
+
+    private static Edges getEdges(Function f, BasicBlocks graph) {
+        int numBlocks = graph.getNumBlocks();
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < f.getNumCommands(); ++i)
+            if (f.getCommand(i) instanceof LabelCommand label)
+                labels.put(label.getLabel(), graph.getBlockOf(i));
+        Edges edges = new Edges(numBlocks);
+        for (int b = 0; b < numBlocks; ++b) {
+            IRCommand last = f.getCommand(graph.getLastCommand(b));
+            edges.jump[b] = -1;
+            edges.fall[b] = b + 1;
+            if (last instanceof GotoCommand jump) {
+                edges.jump[b] = labels.get(jump.getLabel());
+                edges.fall[b] = -1;
+            } else if (last instanceof ConditionalBranchCommand branch) {
+                edges.jump[b] = labels.get(branch.getLabel());
+                edges.conditional[b] = true;
+            } else if (last instanceof ReturnCommand) {
+                edges.fall[b] = -1;
+            }
+        }
+        return edges;
+    }
+
+    // a block holding nothing but labels and a goto only forwards control, jumps to it go straight to
+    // where it leads
+    private static int thread(Function f, BasicBlocks graph, Edges edges, int b) {
+        Set<Integer> visited = new HashSet<>();
+        while (b >= 0 && b < graph.getNumBlocks() && visited.add(b)) {
+            int first = graph.getFirstCommand(b), last = graph.getLastCommand(b);
+            while (first < last && isLabel(f.getCommand(first)))
+                ++first;
+            if (first != last || !(f.getCommand(last) instanceof GotoCommand))
+                break;
+            b = edges.jump[b];
+        }
+        return b;
+    }
+
+    private static double getFrequency(LoopInfo loops, double[] counts, int b) {
+        if (counts != null)
+            return counts[b];
+        return Math.pow(LOOP_FREQUENCY, Math.min(loops.getLoopDepth(b), MAX_LOOP_DEPTH));
+    }
+
+    // back edges are assumed taken and loop exits not, anything else goes either way. With a profile the
+    // counts of the two successors split the branch, exactly so when neither is entered any other way
+    private static double getJumpProbability(LoopInfo loops, double[] counts, Edges edges, int b) {
+        if (!edges.conditional[b])
+            return 1;
+        int jump = edges.jump[b], fall = edges.fall[b];
+        if (counts != null) {
+            double taken = counts[jump], fallen = fall < counts.length ? counts[fall] : 0;
+            return taken + fallen > 0 ? taken / (taken + fallen) : 0.5;
+        }
+        if (isBackEdge(loops, b, jump) || isExit(loops, b, fall))
+            return LOOP_BRANCH_PROBABILITY;
+        if (isBackEdge(loops, b, fall) || isExit(loops, b, jump))
+            return 1 - LOOP_BRANCH_PROBABILITY;
+        return 0.5;
+    }
+
+    private static boolean isBackEdge(LoopInfo loops, int from, int to) {
+        return to >= 0 && to < loops.getDominators().getGraph().getNumBlocks() && loops.isLoopHeader(to)
+                && loops.getDominators().dominates(to, from);
+    }
+
+    private static boolean isExit(LoopInfo loops, int from, int to) {
+        return to >= 0 && to < loops.getDominators().getGraph().getNumBlocks()
+                && loops.getLoopDepth(to) < loops.getLoopDepth(from);
+    }
+
+    // jumps are threaded and unreachable blocks dropped first, then blocks are chained along the heaviest
+    // edges so those become fall throughs, a loop gets its test at the bottom since the edge closing it
+    // outweighs the one entering its body. Branches whose target ends up next are inverted, and only the
+    // labels still jumped to are kept, which merges blocks that are now entered only by falling into them
+    private Function layout(Function f) {
+        BasicBlocks graph = f.getControlFlowGraph();
+        int numBlocks = graph.getNumBlocks();
+        Edges edges = getEdges(f, graph);
+
+        int threaded = 0;
+        for (int b = 0; b < numBlocks; ++b) {
+            int jump = thread(f, graph, edges, edges.jump[b]);
+            if (jump != edges.jump[b])
+                ++threaded;
+            edges.jump[b] = jump;
+            edges.fall[b] = thread(f, graph, edges, edges.fall[b]);
+            // a branch to the block it falls into decides nothing
+            if (edges.conditional[b] && edges.jump[b] == edges.fall[b]) {
+                edges.conditional[b] = false;
+                edges.jump[b] = -1;
+            }
+        }
+
+        boolean[] reachable = new boolean[numBlocks];
+        Deque<Integer> pending = new ArrayDeque<>(List.of(0));
+        while (!pending.isEmpty()) {
+            int b = pending.pop();
+            if (b < 0 || b >= numBlocks || reachable[b])
+                continue;
+            reachable[b] = true;
+            pending.push(edges.jump[b]);
+            pending.push(edges.fall[b]);
+        }
+
+        // heaviest edges first, at equal weight a back edge, then what fell through before
+        LoopInfo loops = new LoopInfo(graph);
+        double[] counts = profile == null ? null : profile.getCounts(f);
+        List<Edge> candidates = new ArrayList<>();
+        for (int b = 0; b < numBlocks; ++b) {
+            if (!reachable[b])
+                continue;
+            double jump = getJumpProbability(loops, counts, edges, b);
+            double frequency = getFrequency(loops, counts, b);
+            if (edges.jump[b] > 0 && edges.jump[b] != b)
+                candidates.add(new Edge(b, edges.jump[b], frequency * jump));
+            if (edges.fall[b] > 0 && edges.fall[b] < numBlocks && edges.fall[b] != b)
+                candidates.add(new Edge(b, edges.fall[b], frequency * (edges.conditional[b] ? 1 - jump : 1)));
+        }
+        candidates.sort(Comparator.<Edge>comparingDouble(edge -> -edge.weight)
+                                .thenComparing(edge -> !isBackEdge(loops, edge.from, edge.to))
+                                .thenComparing(edge -> edge.to != edge.from + 1)
+                                .thenComparingInt(edge -> edge.from));
+
+        // next and prev link the blocks of a chain, the entry stays at the head of its chain
+        int[] next = new int[numBlocks], prev = new int[numBlocks];
+        Arrays.fill(next, -1);
+        Arrays.fill(prev, -1);
+        for (Edge edge : candidates) {
+            int from = edge.from, to = edge.to;
+            if (next[from] != -1 || prev[to] != -1)
+                continue;
+            int head = from;
+            while (prev[head] != -1)
+                head = prev[head];
+            if (head == to)
+                continue;
+            next[from] = to;
+            prev[to] = from;
+        }
+
+        // each chain is followed by the one its tail most likely goes to, otherwise by the earliest left
+        List<Integer> order = new ArrayList<>();
+        boolean[] placed = new boolean[numBlocks];
+        int head = 0;
+        while (head != -1) {
+            int tail = head;
+            for (int b = head; b != -1; b = next[b]) {
+                order.add(b);
+                placed[b] = true;
+                tail = b;
+            }
+            head = -1;
+            for (Edge edge : candidates)
+                if (edge.from == tail && !placed[edge.to]) {
+                    head = edge.to;
+                    break;
+                }
+            for (int b = 0; b < numBlocks && head == -1; ++b)
+                if (reachable[b] && !placed[b] && prev[b] == -1)
+                    head = b;
+            while (head != -1 && prev[head] != -1)
+                head = prev[head];
+        }
+
+        // every block keeps its first label, or gets one when something now has to jump to it
+        String[] names = new String[numBlocks];
+        for (int b = 0; b < numBlocks; ++b)
+            if (f.getCommand(graph.getFirstCommand(b)) instanceof LabelCommand label)
+                names[b] = label.getLabel();
+        List<List<IRCommand>> ends = new ArrayList<>();
+        Set<Integer> targets = new HashSet<>();
+        int inverted = 0;
+        for (int k = 0; k < order.size(); ++k) {
+            int b = order.get(k), following = k + 1 < order.size() ? order.get(k + 1) : numBlocks;
+            int jump = edges.jump[b], fall = edges.fall[b];
+            List<IRCommand> end = new ArrayList<>();
+            if (edges.conditional[b]) {
+                ConditionalBranchCommand branch = (ConditionalBranchCommand) f.getCommand(graph.getLastCommand(b));
+                if (jump == following && fall < numBlocks) {
+                    end.add(new ConditionalBranchCommand(BranchMIPSCommand.INVERSE_CONDITIONS.get(branch.getBranchCommand()),
+                                                         branch.getA(), branch.getB(), getName(names, fall)));
+                    targets.add(fall);
+                    ++inverted;
+                    ends.add(end);
+                    continue;
+                }
+                end.add(new ConditionalBranchCommand(branch.getBranchCommand(), branch.getA(), branch.getB(), getName(names, jump)));
+                targets.add(jump);
+                jump = -1;
+            }
+            int to = jump != -1 ? jump : fall;
+            if (to == numBlocks && following != numBlocks) {
+                end.add(new ReturnCommand());
+            } else if (to != -1 && to != following) {
+                end.add(new GotoCommand(getName(names, to)));
+                targets.add(to);
+            }
+            ends.add(end);
+        }
+
+        // the counts of a profiled function move along with its blocks
+        List<IRCommand> commands = new ArrayList<>();
+        List<Double> commandCounts = new ArrayList<>();
+        for (int k = 0; k < order.size(); ++k) {
+            int b = order.get(k);
+            int first = graph.getFirstCommand(b), last = graph.getLastCommand(b);
+            IRCommand terminator = f.getCommand(last);
+            if (b == 0 || targets.contains(b))
+                commands.add(new LabelCommand(names[b]));
+            while (first <= last && isLabel(f.getCommand(first)))
+                ++first;
+            if (terminator instanceof GotoCommand || terminator instanceof ConditionalBranchCommand)
+                --last;
+            for (int i = first; i <= last; ++i)
+                commands.add(f.getCommand(i).copy(arg -> arg, arg -> arg, label -> label));
+            commands.addAll(ends.get(k));
+            while (commandCounts.size() < commands.size())
+                commandCounts.add(counts != null ? counts[b] : 0);
+        }
+
+        int removed = 0;
+        for (int b = 0; b < numBlocks; ++b)
+            if (!reachable[b])
+                ++removed;
+        if (threaded > 0)
+            statistics.add(f.getFuncName(), "jumps threaded", threaded);
+        if (removed > 0)
+            statistics.add(f.getFuncName(), "unreachable blocks removed", removed);
+        if (inverted > 0)
+            statistics.add(f.getFuncName(), "branches inverted", inverted);
+        Function laidOut = f.rebuild(commands, List.of());
+        if (counts != null)
+            profile.setCounts(laidOut, commandCounts);
+        return laidOut;
+    }
+
+    private String getName(String[] names, int b) {
+        if (names[b] == null)
+            names[b] = "__LAYOUT__" + counter++;
+        return names[b];
+    }
+}
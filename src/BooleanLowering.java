@@ -0,0 +1,178 @@
+import java.util.*;
+
+public class BooleanLowering {
+    private final Class c;
+    private final Statistics statistics;
+    private int counter;
+
+    public BooleanLowering(Class c, Statistics statistics) {
+        this.c = c;
+        this.statistics = statistics;
+    }
+
+    // comparisons materialized through a branch become compares first, then the compares only tested
+    // against zero, alone or joined by and/or, go back to being branches, this time without the diamond
+    public void lower() {
+        for (String name : new ArrayList<>(c.getFunctions().keySet())) {
+            Function f = c.getFunctions().get(name);
+            Function lowered = fuse(collapse(f));
+            if (lowered != f)
+                c.addFunction(lowered);
+        }
+    }
+
+    private static IRCommand copy(IRCommand command) {
+        return command.copy(arg -> arg, arg -> arg, label -> label);
+    }
+
+    private static Map<String, Integer> getReferences(Function f) {
+        Map<String, Integer> references = new HashMap<>();
+        for (int i = 0; i < f.getNumCommands(); ++i) {
+            if (f.getCommand(i) instanceof ConditionalBranchCommand branch)
+                references.merge(branch.getLabel(), 1, Integer::sum);
+            else if (f.getCommand(i) instanceof GotoCommand jump)
+                references.merge(jump.getLabel(), 1, Integer::sum);
+        }
+        return references;
+    }
+
+    // assign t, 1; br a, b, L; assign t, 0; L: leaves t holding the outcome of the comparison, the label
+    // stays only when something else jumps to it
+    private Function collapse(Function f) {
+        Map<String, Integer> references = getReferences(f);
+        List<IRCommand> commands = new ArrayList<>();
+        int collapsed = 0;
+        for (int i = 0; i < f.getNumCommands(); ++i) {
+            CompareCommand compare = getDiamond(f, i);
+            if (compare == null) {
+                commands.add(copy(f.getCommand(i)));
+                continue;
+            }
+            commands.add(compare);
+            String label = ((LabelCommand) f.getCommand(i + 3)).getLabel();
+            if (references.get(label) > 1)
+                commands.add(new LabelCommand(label));
+            i += 3;
+            ++collapsed;
+        }
+        if (collapsed == 0)
+            return f;
+        statistics.add(f.getFuncName(), "boolean diamonds collapsed", collapsed);
+        return f.rebuild(commands, List.of());
+    }
+
+    private static String getConstant(AssignmentCommand assign) {
+        return assign.getValue() instanceof Constant constant ? constant.getValue() : null;
+    }
+
+    private static CompareCommand getDiamond(Function f, int i) {
+        if (i + 3 >= f.getNumCommands() || !(f.getCommand(i) instanceof AssignmentCommand first)
+                || !(f.getCommand(i + 1) instanceof ConditionalBranchCommand branch)
+                || !(f.getCommand(i + 2) instanceof AssignmentCommand second)
+                || !(f.getCommand(i + 3) instanceof LabelCommand label) || !label.getLabel().equals(branch.getLabel()))
+            return null;
+        if (first.getDecl().isEmpty() || !first.getVar().equals(second.getVar()))
+            return null;
+        Variable dest = (Variable) first.getVar();
+        if (!dest.getType().equals(Type.Integer) || branch.getUsed().contains(dest)
+                || !branch.getA().getType().equals(Type.Integer) || !branch.getB().getType().equals(Type.Integer))
+            return null;
+        String taken = getConstant(first), fallen = getConstant(second);
+        if ("1".equals(taken) && "0".equals(fallen))
+            return new CompareCommand(branch.getBranchCommand(), dest, branch.getA(), branch.getB());
+        if ("0".equals(taken) && "1".equals(fallen))
+            return new CompareCommand(BranchMIPSCommand.INVERSE_CONDITIONS.get(branch.getBranchCommand()), dest,
+                                      branch.getA(), branch.getB());
+        return null;
+    }
+
+    // true when the command branches on var being non zero, false when on it being zero, null otherwise
+    private static Boolean getTest(IRCommand command, Variable var) {
+        if (!(command instanceof ConditionalBranchCommand branch))
+            return null;
+        String condition = branch.getBranchCommand();
+        if (!condition.equals("breq") && !condition.equals("brneq"))
+            return null;
+        Constant zero = new Constant("0");
+        if (!(var.equals(branch.getA()) && zero.equals(branch.getB())) && !(zero.equals(branch.getA()) && var.equals(branch.getB())))
+            return null;
+        return condition.equals("brneq");
+    }
+
+    private static ConditionalBranchCommand branch(CompareCommand compare, boolean holds, String label) {
+        String condition = holds ? compare.getCondition() : BranchMIPSCommand.INVERSE_CONDITIONS.get(compare.getCondition());
+        return new ConditionalBranchCommand(condition, compare.getA(), compare.getB(), label);
+    }
+
+    // globals may still be read by a callee or after returning
+    private static boolean isDead(Function f, LiveSet liveSet, int i, Variable... vars) {
+        for (Variable var : vars)
+            if (!f.isLocalVariable(var) || liveSet.getOutSet(i).contains(var))
+                return false;
+        return true;
+    }
+
+    private Function fuse(Function f) {
+        LiveSet liveSet = new LiveSet(f);
+        List<IRCommand> commands = new ArrayList<>();
+        int fused = 0;
+        for (int i = 0; i < f.getNumCommands(); ++i) {
+            if (fuseConnective(f, liveSet, i, commands)) {
+                i += 3;
+                ++fused;
+            } else if (fuseCompare(f, liveSet, i, commands)) {
+                i += 1;
+                ++fused;
+            } else {
+                commands.add(copy(f.getCommand(i)));
+            }
+        }
+        if (fused == 0)
+            return f;
+        statistics.add(f.getFuncName(), "compares fused into branches", fused);
+        return f.rebuild(commands, List.of());
+    }
+
+    // t = a < b; br t != 0, L becomes br a < b, L
+    private boolean fuseCompare(Function f, LiveSet liveSet, int i, List<IRCommand> commands) {
+        if (i + 1 >= f.getNumCommands() || !(f.getCommand(i) instanceof CompareCommand compare))
+            return false;
+        Boolean holds = getTest(f.getCommand(i + 1), compare.getDest());
+        if (holds == null || !isDead(f, liveSet, i + 1, compare.getDest()))
+            return false;
+        commands.add(branch(compare, holds, ((ConditionalBranchCommand) f.getCommand(i + 1)).getLabel()));
+        return true;
+    }
+
+    // two compares joined by and/or and tested against zero become two branches, the second one only
+    // reached when the first doesn't decide the outcome
+    private boolean fuseConnective(Function f, LiveSet liveSet, int i, List<IRCommand> commands) {
+        if (i + 3 >= f.getNumCommands() || !(f.getCommand(i) instanceof CompareCommand first)
+                || !(f.getCommand(i + 1) instanceof CompareCommand second)
+                || !(f.getCommand(i + 2) instanceof BinaryOperatorCommand join))
+            return false;
+        BinaryOperator op = join.getOp();
+        Variable x = first.getDest(), y = second.getDest();
+        if ((op != BinaryOperator.AND && op != BinaryOperator.OR) || x.equals(y) || second.getUsed().contains(x)
+                || !Set.of(x, y).equals(join.getUsed()))
+            return false;
+        Boolean holds = getTest(f.getCommand(i + 3), join.getDest());
+        if (holds == null || !isDead(f, liveSet, i + 3, x, y, join.getDest()))
+            return false;
+        String label = ((ConditionalBranchCommand) f.getCommand(i + 3)).getLabel();
+        // taken when either fails for a branch on and being zero, and when either holds for or being non zero
+        if ((op == BinaryOperator.AND) != holds) {
+            boolean each = op == BinaryOperator.OR;
+            commands.add(branch(first, each, label));
+            commands.add(branch(second, each, label));
+            return true;
+        }
+        // otherwise the first one deciding the other way skips the second
+        String skip = "__FUSED__" + counter++;
+        boolean skipWhen = op == BinaryOperator.OR;
+        commands.add(branch(first, skipWhen, skip));
+        commands.add(branch(second, !skipWhen, label));
+        commands.add(new LabelCommand(skip));
+        return true;
+    }
+}
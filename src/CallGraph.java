@@ -0,0 +1,204 @@
+import java.util.*;
+
+public class CallGraph {
+    // registers a call may overwrite under the usual convention, everything but the callee saved registers,
+    // sp, fp and ra
+    final static Set<String> STANDARD_CLOBBERS = new HashSet<>();
+    static {
+        for (var registers : List.of(Translator.intTempRegisters, Translator.floatTempRegisters,
+                                     RegisterAllocator.intCallerSavedRegisters, RegisterAllocator.floatCallerSavedRegisters,
+                                     Function.intArgumentRegisters, Function.floatArgumentRegisters,
+                                     List.of(Translator.RETURN_INT, Translator.RETURN_FLOAT)))
+            for (Register register : registers)
+                STANDARD_CLOBBERS.add(register.getName());
+    }
+
+    private final List<String> names;
+    private final Map<String, Integer> ids;
+    private final List<Set<Integer>> callees;
+    private final List<Set<Integer>> callers;
+
+    // strongly connected components in the order Tarjan's algorithm finishes them, every callee's component
+    // comes before its callers'
+    private final List<List<Integer>> components;
+    private final int[] componentOf;
+    private final boolean[] recursive;
+
+    // registers the function's own code writes and the caller saved registers a call to it may overwrite,
+    // both known once the function has been translated
+    private final Map<Integer, Set<String>> written;
+    private final Map<Integer, Set<String>> clobbers;
+    private Map<Integer, Set<String>> preserved;
+
+    public CallGraph(Class c) {
+        this.names = new ArrayList<>(c.getFunctions().keySet());
+        Collections.sort(names);
+        this.ids = new HashMap<>();
+        for (int i = 0; i < names.size(); ++i)
+            ids.put(names.get(i), i);
+        this.callees = new ArrayList<>();
+        this.callers = new ArrayList<>();
+        for (int i = 0; i < names.size(); ++i) {
+            callees.add(new TreeSet<>());
+            callers.add(new TreeSet<>());
+        }
+        for (int i = 0; i < names.size(); ++i) {
+            Function f = c.getFunctions().get(names.get(i));
+            for (int k = 0; k < f.getNumCommands(); ++k) {
+                if (!(f.getCommand(k) instanceof CallCommand call))
+                    continue;
+                Integer callee = ids.get(call.getFunc());
+                if (callee == null)
+                    continue;
+                callees.get(i).add(callee);
+                callers.get(callee).add(i);
+            }
+        }
+        this.components = new ArrayList<>();
+        this.componentOf = new int[names.size()];
+        findComponents();
+        this.recursive = new boolean[components.size()];
+        for (int s = 0; s < components.size(); ++s) {
+            List<Integer> component = components.get(s);
+            recursive[s] = component.size() > 1 || callees.get(component.get(0)).contains(component.get(0));
+        }
+        this.written = new HashMap<>();
+        this.clobbers = new HashMap<>();
+    }
+
+    // Tarjan's algorithm with an explicit stack of (function, next callee) frames
+    private void findComponents() {
+        int n = names.size();
+        int[] index = new int[n];
+        int[] lowLink = new int[n];
+        boolean[] onStack = new boolean[n];
+        Arrays.fill(index, -1);
+        Deque<Integer> stack = new ArrayDeque<>();
+        int counter = 0;
+        for (int root = 0; root < n; ++root) {
+            if (index[root] != -1)
+                continue;
+            Deque<Iterator<Integer>> frames = new ArrayDeque<>();
+            Deque<Integer> path = new ArrayDeque<>();
+            index[root] = lowLink[root] = counter++;
+            stack.push(root);
+            onStack[root] = true;
+            path.push(root);
+            frames.push(callees.get(root).iterator());
+            while (!path.isEmpty()) {
+                int v = path.peek();
+                Iterator<Integer> it = frames.peek();
+                if (it.hasNext()) {
+                    int w = it.next();
+                    if (index[w] == -1) {
+                        index[w] = lowLink[w] = counter++;
+                        stack.push(w);
+                        onStack[w] = true;
+                        path.push(w);
+                        frames.push(callees.get(w).iterator());
+                    } else if (onStack[w]) {
+                        lowLink[v] = Math.min(lowLink[v], index[w]);
+                    }
+                    continue;
+                }
+                path.pop();
+                frames.pop();
+                if (!path.isEmpty())
+                    lowLink[path.peek()] = Math.min(lowLink[path.peek()], lowLink[v]);
+                if (lowLink[v] != index[v])
+                    continue;
+                List<Integer> component = new ArrayList<>();
+                int w;
+                do {
+                    w = stack.pop();
+                    onStack[w] = false;
+                    componentOf[w] = components.size();
+                    component.add(w);
+                } while (w != v);
+                components.add(component);
+            }
+        }
+    }
+
+    // functions ordered so that every callee outside a recursive cycle comes before its callers
+    public List<String> getBottomUpOrder() {
+        List<String> order = new ArrayList<>();
+        for (List<Integer> component : components)
+            for (int f : component)
+                order.add(names.get(f));
+        return order;
+    }
+
+    public boolean isRecursive(String func) {
+        Integer id = ids.get(func);
+        return id == null || recursive[componentOf[id]];
+    }
+
+    public List<String> getCallees(String func) {
+        return callees.get(ids.get(func)).stream().map(names::get).toList();
+    }
+
+    public List<String> getCallers(String func) {
+        return callers.get(ids.get(func)).stream().map(names::get).toList();
+    }
+
+    // a function outside a recursive cycle overwrites what it writes itself plus what its callees overwrite,
+    // the translator reports what it writes once the function is translated, so callees must come first
+    public void setWritten(String func, Set<String> registers) {
+        Integer id = ids.get(func);
+        if (id == null)
+            return;
+        written.put(id, registers);
+        if (recursive[componentOf[id]])
+            return;
+        Set<String> clobbered = new HashSet<>();
+        for (String register : registers)
+            if (STANDARD_CLOBBERS.contains(register))
+                clobbered.add(register);
+        for (int callee : callees.get(id))
+            clobbered.addAll(getClobbers(names.get(callee)));
+        clobbers.put(id, clobbered);
+    }
+
+    public Set<String> getClobbers(String func) {
+        Integer id = ids.get(func);
+        if (id == null)
+            return STANDARD_CLOBBERS;
+        return clobbers.getOrDefault(id, STANDARD_CLOBBERS);
+    }
+
+    // callee saved registers the function has to restore before returning. A caller can only keep a value in
+    // one across the call if it wrote it, or if a caller further up did, so those are the ones of its callers
+    // plus whatever they preserve in turn. Recursive functions follow the usual convention and keep every one
+    // of them, null stands for that. main is only entered from the startup code, which exits right after it,
+    // so nothing outside relies on it. Every function has to be translated first
+    public Set<String> getPreserved(String func) {
+        if (preserved == null)
+            computePreserved();
+        Integer id = ids.get(func);
+        return id == null ? null : preserved.get(id);
+    }
+
+    private void computePreserved() {
+        preserved = new HashMap<>();
+        for (int s = components.size() - 1; s >= 0; --s) {
+            for (int f : components.get(s)) {
+                if (recursive[s]) {
+                    preserved.put(f, null);
+                    continue;
+                }
+                Set<String> registers = new HashSet<>();
+                for (int caller : callers.get(f)) {
+                    Set<String> callerPreserved = preserved.get(caller);
+                    if (callerPreserved == null || !written.containsKey(caller)) {
+                        registers = null;
+                        break;
+                    }
+                    registers.addAll(written.get(caller));
+                    registers.addAll(callerPreserved);
+                }
+                preserved.put(f, registers);
+            }
+        }
+    }
+}
@@ -17,6 +17,10 @@ public class Class {
         func.setCurrClass(this);
     }
 
+    public void removeFunction(String name){
+        functions.remove(name);
+    }
+
     public void addStaticVar(Variable arg){
         staticMemory.declareVariable(arg);
     }
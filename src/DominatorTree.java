@@ -0,0 +1,204 @@
+import java.util.*;
+
+public class DominatorTree {
+    private final BasicBlocks graph;
+
+    // blocks reachable from the entry block in reverse post order, rpoIndex[b] is -1 for unreachable blocks
+    private final int[] order;
+    private final int[] rpoIndex;
+    private final int[] idom;
+
+    // children of block b in the tree are children[childOffsets[b] .. childOffsets[b + 1]),
+    // a dominates b exactly when b's preorder number falls inside a's [pre, post] range
+    private final int[] childOffsets;
+    private final int[] children;
+    private final int[] pre;
+    private final int[] post;
+
+    // dominance frontiers in the same offset form, built on first use
+    private int[] frontierOffsets;
+    private int[] frontiers;
+
+    public DominatorTree(BasicBlocks graph) {
+        this.graph = graph;
+        int numBlocks = graph.getNumBlocks();
+        this.rpoIndex = new int[numBlocks];
+        this.idom = new int[numBlocks];
+        this.order = reversePostOrder();
+        this.childOffsets = new int[numBlocks + 1];
+        this.pre = new int[numBlocks];
+        this.post = new int[numBlocks];
+        computeDominators();
+
+        for (int b : order)
+            if (idom[b] != -1) ++childOffsets[idom[b] + 1];
+        for (int b = 0; b < numBlocks; ++b)
+            childOffsets[b + 1] += childOffsets[b];
+        this.children = new int[childOffsets[numBlocks]];
+        int[] fill = Arrays.copyOf(childOffsets, numBlocks);
+        for (int b : order)
+            if (idom[b] != -1) children[fill[idom[b]]++] = b;
+        number();
+    }
+
+    private int[] reversePostOrder() {
+        int numBlocks = graph.getNumBlocks();
+        Arrays.fill(rpoIndex, -1);
+        if (numBlocks == 0)
+            return new int[0];
+        List<Integer> postOrder = new ArrayList<>(numBlocks);
+        boolean[] visited = new boolean[numBlocks];
+        Deque<int[]> stack = new ArrayDeque<>();
+        visited[0] = true;
+        stack.push(new int[]{0, 0});
+        while (!stack.isEmpty()) {
+            int[] top = stack.peek();
+            if (top[1] < graph.getNumSuccessors(top[0])) {
+                int s = graph.getSuccessor(top[0], top[1]++);
+                if (!visited[s]) {
+                    visited[s] = true;
+                    stack.push(new int[]{s, 0});
+                }
+            } else {
+                postOrder.add(top[0]);
+                stack.pop();
+            }
+        }
+        int[] rpo = new int[postOrder.size()];
+        for (int i = 0; i < rpo.length; ++i) {
+            rpo[i] = postOrder.get(rpo.length - 1 - i);
+            rpoIndex[rpo[i]] = i;
+        }
+        return rpo;
+    }
+
+    // Cooper, Harvey and Kennedy's iterative algorithm, a few passes in reverse post order
+    // are enough for the graphs the IR produces
+    private void computeDominators() {
+        Arrays.fill(idom, -1);
+        if (order.length == 0)
+            return;
+        idom[order[0]] = order[0];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < order.length; ++i) {
+                int b = order[i];
+                int newIdom = -1;
+                for (int k = 0; k < graph.getNumPredecessors(b); ++k) {
+                    int p = graph.getPredecessor(b, k);
+                    if (idom[p] == -1)
+                        continue;
+                    newIdom = newIdom == -1 ? p : intersect(p, newIdom);
+                }
+                if (idom[b] != newIdom) {
+                    idom[b] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+        idom[order[0]] = -1;
+    }
+
+    private int intersect(int a, int b) {
+        while (a != b) {
+            while (rpoIndex[a] > rpoIndex[b]) a = idom[a];
+            while (rpoIndex[b] > rpoIndex[a]) b = idom[b];
+        }
+        return a;
+    }
+
+    private void number() {
+        if (order.length == 0)
+            return;
+        int counter = 0;
+        Deque<int[]> stack = new ArrayDeque<>();
+        pre[order[0]] = counter++;
+        stack.push(new int[]{order[0], 0});
+        while (!stack.isEmpty()) {
+            int[] top = stack.peek();
+            if (top[1] < getNumChildren(top[0])) {
+                int child = getChild(top[0], top[1]++);
+                pre[child] = counter++;
+                stack.push(new int[]{child, 0});
+            } else {
+                post[top[0]] = counter - 1;
+                stack.pop();
+            }
+        }
+    }
+
+    public BasicBlocks getGraph() {
+        return graph;
+    }
+
+    public boolean isReachable(int block) {
+        return rpoIndex[block] != -1;
+    }
+
+    // -1 for the entry block and for unreachable blocks
+    public int getImmediateDominator(int block) {
+        return idom[block];
+    }
+
+    public boolean dominates(int a, int b) {
+        if (!isReachable(a) || !isReachable(b))
+            return false;
+        return pre[a] <= pre[b] && pre[b] <= post[a];
+    }
+
+    // Cytron et al. via Cooper, Harvey and Kennedy: every join point is in the frontier of the blocks
+    // on the path from each predecessor up to its immediate dominator
+    private void computeFrontiers() {
+        int numBlocks = graph.getNumBlocks();
+        List<Set<Integer>> sets = new ArrayList<>(numBlocks);
+        for (int b = 0; b < numBlocks; ++b)
+            sets.add(new LinkedHashSet<>());
+        for (int b : order) {
+            if (graph.getNumPredecessors(b) < 2)
+                continue;
+            for (int k = 0; k < graph.getNumPredecessors(b); ++k) {
+                int runner = graph.getPredecessor(b, k);
+                if (!isReachable(runner))
+                    continue;
+                while (runner != -1 && runner != idom[b]) {
+                    sets.get(runner).add(b);
+                    runner = idom[runner];
+                }
+            }
+        }
+        frontierOffsets = new int[numBlocks + 1];
+        for (int b = 0; b < numBlocks; ++b)
+            frontierOffsets[b + 1] = frontierOffsets[b] + sets.get(b).size();
+        frontiers = new int[frontierOffsets[numBlocks]];
+        for (int b = 0; b < numBlocks; ++b) {
+            int i = frontierOffsets[b];
+            for (int f : sets.get(b))
+                frontiers[i++] = f;
+        }
+    }
+
+    public int getNumFrontiers(int block) {
+        if (frontiers == null)
+            computeFrontiers();
+        return frontierOffsets[block + 1] - frontierOffsets[block];
+    }
+
+    public int getFrontier(int block, int k) {
+        if (frontiers == null)
+            computeFrontiers();
+        return frontiers[frontierOffsets[block] + k];
+    }
+
+    public int[] getReversePostOrder() {
+        return order;
+    }
+
+    public int getNumChildren(int block) {
+        return childOffsets[block + 1] - childOffsets[block];
+    }
+
+    public int getChild(int block, int k) {
+        return children[childOffsets[block] + k];
+    }
+}
@@ -13,10 +13,18 @@ public class Function {
     private final RegisterMemory intArgumentMemory;
     private final RegisterMemory floatArgumentMemory;
 
-    private final Map<IRCommand, Integer> commandMap;
     private List<IRCommand> commandList;
+
+    // declarations in order, so the function can be rebuilt with the same frame layout
+    private final List<Variable> arguments;
+    private final List<Variable> localVariables;
+
+    // dense numbering of variables referenced by commands, used by bit vector based analyses
+    private final Map<Variable, Integer> variableIds;
+    private final List<Variable> variables;
     private final BasicBlocks controlFlowGraph;
     private int maxArgumentSize;
+    private boolean leaf;
 
 
     // predefined registers
@@ -26,12 +34,15 @@ public class Function {
     final static List<Register> floatArgumentRegisters = List.of("f12", "f14")
             .stream().map(s -> new Register(s, Type.Float)).collect(Collectors.toList());
 
+    // library functions the translator expands into syscalls instead of calling
+    final static Set<String> intrinsicFunctions = Set.of("printi", "printf", "exit", "not");
 
 
     public Function(String name) {
         this.funcName = name;
         this.currClass = null;
         this.maxArgumentSize = 4 * 4 + 2 * 8; // 4 int argument register + 2 float argument register
+        this.leaf = true;
 
         // memory initialization
         this.localMemory = new Stack(new Register("sp", Type.Integer), true);
@@ -40,18 +51,30 @@ public class Function {
         this.floatArgumentMemory = new RegisterMemory(floatArgumentRegisters);
 
         this.commandList = new ArrayList<>();
+        this.arguments = new ArrayList<>();
+        this.localVariables = new ArrayList<>();
         this.controlFlowGraph = new BasicBlocks();
-        this.commandMap = new HashMap<>();
-
+        this.variableIds = new HashMap<>();
+        this.variables = new ArrayList<>();
     }
 
     public String getFuncName() {
         return funcName;
     }
 
+    public List<Variable> getArguments() {
+        return arguments;
+    }
+
+    public List<Variable> getLocalVariables() {
+        return localVariables;
+    }
+
     public void addLocalVar(Variable v){
-        if(argumentMemory.getAddress(v) == null)
+        if(argumentMemory.getAddress(v) == null && localMemory.getAddress(v) == null) {
             localMemory.declareVariable(v);
+            localVariables.add(v);
+        }
     }
 
     public void addArgument(Variable v) {
@@ -61,10 +84,12 @@ public class Function {
             floatArgumentMemory.declareVariable(v);
         }
         argumentMemory.declareVariable(v);
+        arguments.add(v);
     }
 
     public void addCommand(IRCommand c){
-        if (c instanceof CallCommand){
+        if (c instanceof CallCommand && !intrinsicFunctions.contains(((CallCommand) c).getFunc())){
+            leaf = false;
             int size = 0;
             for(var arg: ((CallCommand) c).getArgs()){
                 size += arg.getType().getSize();
@@ -77,12 +102,65 @@ public class Function {
             }
             maxArgumentSize = Math.max(maxArgumentSize, size);
         }
+        for(var v: c.getUsed())
+            declareVariableId(v);
+        for(var v: c.getDecl())
+            declareVariableId(v);
         c.setBlock(controlFlowGraph.getCurrentBlock());
+        c.setPosition(commandList.size());
         commandList.add(c);
-        commandMap.put(c, commandMap.size());
         controlFlowGraph.addCommand(c);
     }
 
+    private void declareVariableId(Variable v){
+        if(!variableIds.containsKey(v)) {
+            variableIds.put(v, variables.size());
+            variables.add(v);
+        }
+    }
+
+    public Integer getVariableId(Variable v){
+        return variableIds.get(v);
+    }
+
+    public Variable getVariableById(int id){
+        return variables.get(id);
+    }
+
+    public int getNumVariables(){
+        return variables.size();
+    }
+
+    // adds a command the way the parser does, labels open a basic block and jumps or returns close it
+    public void appendCommand(IRCommand c){
+        if (c instanceof LabelCommand)
+            startBasicBlock(((LabelCommand) c).getLabel());
+        addCommand(c);
+        if (c instanceof GotoCommand)
+            endBasicBlock(((GotoCommand) c).getLabel(), false);
+        else if (c instanceof ConditionalBranchCommand)
+            endBasicBlock(((ConditionalBranchCommand) c).getLabel(), true);
+        else if (c instanceof ReturnCommand)
+            endBasicBlock();
+    }
+
+    // frozen copy of this function running the given commands, which must not belong to another function,
+    // extra locals are declared after the original ones
+    public Function rebuild(List<IRCommand> commands, List<Variable> extraLocals){
+        Function func = new Function(funcName);
+        func.setCurrClass(currClass);
+        for(var v: arguments)
+            func.addArgument(v);
+        for(var v: localVariables)
+            func.addLocalVar(v);
+        for(var v: extraLocals)
+            func.addLocalVar(v);
+        for(var c: commands)
+            func.appendCommand(c);
+        func.freeze();
+        return func;
+    }
+
     public void startBasicBlock(String label){
         controlFlowGraph.startBasicBlock(label);
     }
@@ -95,6 +173,41 @@ public class Function {
         controlFlowGraph.endBasicBlock(label, isConditional);
     }
 
+    // called once every command has been added, analyses rely on the frozen graph afterwards
+    public void freeze(){
+        controlFlowGraph.freeze(commandList);
+        // tail calls return straight to this function's caller, a function making no other calls keeps ra
+        leaf = true;
+        for(int i = 0; i < commandList.size(); ++i)
+            if(commandList.get(i) instanceof CallCommand call && !intrinsicFunctions.contains(call.getFunc()) && !isTailCall(i))
+                leaf = false;
+    }
+
+    // a call the function returns the result of right away, with every argument passed in a register, the
+    // translator turns it into a jump once the frame is torn down. main runs once and has to leave through
+    // its own epilogue, where an instrumented program prints its counts
+    public boolean isTailCall(int i){
+        if(funcName.equals("main") || !(commandList.get(i) instanceof CallCommand call) || intrinsicFunctions.contains(call.getFunc())
+                || i + 1 >= commandList.size() || !(commandList.get(i + 1) instanceof ReturnCommand ret))
+            return false;
+        // a global result would have to be stored before leaving
+        if(call instanceof CallRCommand callr){
+            if(!callr.getVar().equals(ret.getReturnValue()) || getGlobalAddress((Variable) callr.getVar()) != null)
+                return false;
+        } else if(ret.getReturnValue() != null)
+            return false;
+        int ints = 0, floats = 0;
+        for(Argument arg: call.getArgs()){
+            if(arg instanceof Array)
+                return false;
+            if(arg.getType().equals(Type.Float))
+                ++floats;
+            else
+                ++ints;
+        }
+        return ints <= intArgumentRegisters.size() && floats <= floatArgumentRegisters.size();
+    }
+
     public BasicBlocks getControlFlowGraph() {
         return controlFlowGraph;
     }
@@ -103,8 +216,13 @@ public class Function {
         return commandList.get(i);
     }
 
+    // a leaf never calls out, so it needs no outgoing argument area
     public int getMaxArgumentSize() {
-        return maxArgumentSize;
+        return leaf ? 0 : maxArgumentSize;
+    }
+
+    public boolean isLeaf() {
+        return leaf;
     }
 
     public int getLocalMemorySize() {
@@ -119,6 +237,11 @@ public class Function {
         return intArgumentMemory.getAllAddress();
     }
 
+    // scalar declared in the function's own int/float lists, the only variables that may live in a register
+    public boolean isLocalVariable(Variable arg){
+        return !(arg instanceof Array) && localMemory.getAddress(arg) != null;
+    }
+
     public Address getLocalAddress(Variable arg){
         Address add = localMemory.getAddress(arg);
         if(add != null)
@@ -169,23 +292,4 @@ public class Function {
     public void setCurrClass(Class currClass) {
         this.currClass = currClass;
     }
-
-    public Set<Integer> getFollowSet(Integer i){
-        IRCommand curr = commandList.get(i);
-        BasicBlocks.Block currBlock = curr.getBlock();
-        List<IRCommand> commands = currBlock.getCommands();
-
-        // get indices of commands which might follow current command in program flow
-        if (commands.indexOf(curr) == commands.size() - 1){
-            Set<Integer> followSet = new HashSet<>();
-
-            for(var blocks: currBlock.getNextBlocks()){
-                followSet.add(commandMap.get(blocks.getCommands().get(0)));
-            }
-
-            return followSet;
-        }
-
-        return Set.of(commandMap.get(curr) + 1);
-    }
 }
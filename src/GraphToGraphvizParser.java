@@ -1,9 +1,6 @@
-import java.util.HashSet;
-import java.util.Set;
-
 public class GraphToGraphvizParser {
     private GraphVizBuilder builder;
-    private Set<Integer> visited;
+    private boolean[] visited;
 
     public GraphToGraphvizParser(GraphVizBuilder builder){
         this.builder = builder;
@@ -18,19 +15,20 @@ public class GraphToGraphvizParser {
 
     public void parse(Function function){
         builder.startSubgraph(function.getFuncName());
-        visited = new HashSet<>();
-        parse(function.getControlFlowGraph().getStartingBlock());
+        BasicBlocks graph = function.getControlFlowGraph();
+        visited = new boolean[graph.getNumBlocks()];
+        parse(graph, graph.getStartingBlock().getId(), function.getFuncName());
         builder.endSubgraph();
     }
 
-    public void parse(BasicBlocks.Block block){
-        if(visited.contains(block.hashCode()))
+    private void parse(BasicBlocks graph, int block, String prefix){
+        if(visited[block])
             return;
-        visited.add(block.hashCode());
-        builder.addAttribute(String.valueOf(block.hashCode()),"label", block.toString());
-        for(BasicBlocks.Block b: block.getNextBlocks())
-            builder.addArrow(String.valueOf(block.hashCode()), String.valueOf(b.hashCode()));
-        for(BasicBlocks.Block b: block.getNextBlocks())
-            parse(b);
+        visited[block] = true;
+        builder.addAttribute(prefix + block,"label", graph.getBlock(block).toString());
+        for(int k = 0; k < graph.getNumSuccessors(block); ++k)
+            builder.addArrow(prefix + block, prefix + graph.getSuccessor(block, k));
+        for(int k = 0; k < graph.getNumSuccessors(block); ++k)
+            parse(graph, graph.getSuccessor(block, k), prefix);
     }
 }
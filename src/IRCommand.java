@@ -1,12 +1,28 @@
 import java.util.*;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 public abstract class IRCommand {
+    // position of the command in its function, commands are identified by it rather than by value
+    private int position = -1;
+
     abstract Set<Variable> getUsed();
     abstract Set<Variable> getDecl();
     abstract void setBlock(BasicBlocks.Block block);
     abstract BasicBlocks.Block getBlock();
 
+    // fresh command with every used argument, defined variable and jump label passed through the given maps,
+    // arrays go through the use map as well
+    abstract IRCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label);
+
+    int getPosition() {
+        return position;
+    }
+
+    void setPosition(int position) {
+        this.position = position;
+    }
+
 
     static Set<Variable> extractVars(Set<Argument> args){
         return args.stream().filter(Objects::nonNull).filter(Variable.class::isInstance)
@@ -66,23 +82,153 @@ class ConditionalBranchCommand extends IRCommand {
     }
 
     @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        ConditionalBranchCommand that = (ConditionalBranchCommand) o;
-        return Objects.equals(branchCommand, that.branchCommand) && Objects.equals(a, that.a) && Objects.equals(b, that.b) && Objects.equals(label, that.label) && Objects.equals(block, that.block);
+    public ConditionalBranchCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label) {
+        return new ConditionalBranchCommand(branchCommand, use.apply(a), use.apply(b), label.apply(this.label));
+    }
+
+    @Override
+    public String toString() {
+        return branchCommand + ", " + a + ", " + b + ", " + label;
+    }
+
+}
+
+// dest = 1 when the comparison a b of the given branch holds and 0 otherwise
+class CompareCommand extends IRCommand {
+    private final String condition;
+    private final Variable dest;
+    private final Argument a;
+    private final Argument b;
+    private BasicBlocks.Block block;
+
+    public CompareCommand(String condition, Argument dest, Argument a, Argument b) {
+        this.condition = condition;
+        this.dest = (Variable) dest;
+        this.a = a;
+        this.b = b;
+    }
+
+    public String getCondition() {
+        return condition;
+    }
+
+    public Variable getDest() {
+        return dest;
+    }
+
+    public Argument getA() {
+        return a;
+    }
+
+    public Argument getB() {
+        return b;
+    }
+
+    @Override
+    public Set<Variable> getUsed() {
+        return IRCommand.extractVars(new HashSet<>(Arrays.asList(a, b)));
+    }
+
+    @Override
+    public Set<Variable> getDecl() {
+        return IRCommand.extractVars(Set.of(dest));
+    }
+
+    @Override
+    public BasicBlocks.Block getBlock() {
+        return block;
+    }
+
+    @Override
+    public void setBlock(BasicBlocks.Block block) {
+        this.block = block;
     }
 
     @Override
-    public int hashCode() {
-        return Objects.hash(branchCommand, a, b, label, block);
+    public CompareCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label) {
+        return new CompareCommand(condition, def.apply(dest), use.apply(a), use.apply(b));
     }
 
     @Override
     public String toString() {
-        return branchCommand + ", " + a + ", " + b + ", " + label;
+        return "s" + condition.substring(2) + ", " + dest + ", " + a + ", " + b;
+    }
+}
+
+// dest = ifTrue when the comparison a b of the given branch holds and ifFalse otherwise
+class SelectCommand extends IRCommand {
+    private final String condition;
+    private final Argument a;
+    private final Argument b;
+    private final Variable dest;
+    private final Argument ifTrue;
+    private final Argument ifFalse;
+    private BasicBlocks.Block block;
+
+    public SelectCommand(String condition, Argument a, Argument b, Argument dest, Argument ifTrue, Argument ifFalse) {
+        this.condition = condition;
+        this.a = a;
+        this.b = b;
+        this.dest = (Variable) dest;
+        this.ifTrue = ifTrue;
+        this.ifFalse = ifFalse;
+    }
+
+    public String getCondition() {
+        return condition;
+    }
+
+    public Argument getA() {
+        return a;
+    }
+
+    public Argument getB() {
+        return b;
     }
 
+    public Variable getDest() {
+        return dest;
+    }
+
+    public Argument getIfTrue() {
+        return ifTrue;
+    }
+
+    public Argument getIfFalse() {
+        return ifFalse;
+    }
+
+    @Override
+    public Set<Variable> getUsed() {
+        return IRCommand.extractVars(new HashSet<>(Arrays.asList(a, b, ifTrue, ifFalse)));
+    }
+
+    @Override
+    public Set<Variable> getDecl() {
+        return IRCommand.extractVars(Set.of(dest));
+    }
+
+    @Override
+    public BasicBlocks.Block getBlock() {
+        return block;
+    }
+
+    @Override
+    public void setBlock(BasicBlocks.Block block) {
+        this.block = block;
+    }
+
+    @Override
+    public SelectCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label) {
+        // the uses are renamed before the definition, a select may keep the old value of its destination
+        Argument newA = use.apply(a), newB = use.apply(b), newIfTrue = use.apply(ifTrue), newIfFalse = use.apply(ifFalse);
+        return new SelectCommand(condition, newA, newB, def.apply(dest), newIfTrue, newIfFalse);
+    }
+
+    @Override
+    public String toString() {
+        return "select" + condition.substring(2) + ", " + dest + ", " + a + ", " + b + ", " + ifTrue + ", " + ifFalse;
+    }
 }
 
 class GotoCommand extends IRCommand {
@@ -107,19 +253,6 @@ class GotoCommand extends IRCommand {
         return Set.of();
     }
 
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        GotoCommand that = (GotoCommand) o;
-        return Objects.equals(label, that.label) && Objects.equals(block, that.block);
-    }
-
-    @Override
-    public int hashCode() {
-        return Objects.hash(label, block);
-    }
-
     @Override
     public BasicBlocks.Block getBlock() {
         return block;
@@ -130,6 +263,11 @@ class GotoCommand extends IRCommand {
         this.block = block;
     }
 
+    @Override
+    public GotoCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label) {
+        return new GotoCommand(label.apply(this.label));
+    }
+
     @Override
     public String toString() {
         return "goto" + ", " + label + ", ,";
@@ -173,19 +311,11 @@ class ReturnCommand extends IRCommand {
     public void setBlock(BasicBlocks.Block block) {
         this.block = block;
     }
-
     @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        ReturnCommand that = (ReturnCommand) o;
-        return Objects.equals(returnValue, that.returnValue) && Objects.equals(block, that.block);
+    public ReturnCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label) {
+        return new ReturnCommand(returnValue == null ? null : use.apply(returnValue));
     }
 
-    @Override
-    public int hashCode() {
-        return Objects.hash(returnValue, block);
-    }
     @Override
     public String toString() {
         if (returnValue != null)
@@ -203,7 +333,8 @@ enum BinaryOperator {
     DIV("div"),
     AND("and"),
     OR("or"),
-    NOR("nor");
+    NOR("nor"),
+    XOR("xor");
 
     public final String value;
     private static final Map<String, BinaryOperator> lookup = new HashMap<String, BinaryOperator>();
@@ -281,16 +412,8 @@ class BinaryOperatorCommand extends IRCommand {
     }
 
     @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        BinaryOperatorCommand that = (BinaryOperatorCommand) o;
-        return op == that.op && Objects.equals(a, that.a) && Objects.equals(b, that.b) && Objects.equals(dest, that.dest) && Objects.equals(block, that.block);
-    }
-
-    @Override
-    public int hashCode() {
-        return Objects.hash(op, a, b, dest, block);
+    public BinaryOperatorCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label) {
+        return new BinaryOperatorCommand(op, use.apply(a), use.apply(b), def.apply(dest));
     }
 
     @Override
@@ -339,20 +462,12 @@ class CallCommand extends IRCommand {
         this.block = block;
     }
 
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        CallCommand that = (CallCommand) o;
-        return Objects.equals(func, that.func) && Objects.equals(block, that.block);
-    }
 
     @Override
-    public int hashCode() {
-        return Objects.hash(func, block);
+    public CallCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label) {
+        return new CallCommand(func, args.stream().map(use).toList());
     }
 
-
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -382,11 +497,6 @@ class CallRCommand extends CallCommand {
         return extractVars(Set.of(var));
     }
 
-    @Override
-    public Set<Variable> getUsed() {
-        return Set.of();
-    }
-
     @Override
     public BasicBlocks.Block getBlock() {
         return block;
@@ -398,20 +508,9 @@ class CallRCommand extends CallCommand {
     }
 
     @Override
-    public boolean equals(Object o) {
-        if (this == o)
-            return true;
-        if (o == null || getClass() != o.getClass())
-            return false;
-        if (!super.equals(o))
-            return false;
-        CallRCommand that = (CallRCommand) o;
-        return Objects.equals(var, that.var) && Objects.equals(block, that.block);
-    }
-
-    @Override
-    public int hashCode() {
-        return Objects.hash(super.hashCode(), var, block);
+    public CallRCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label) {
+        List<Argument> newArgs = getArgs().stream().map(use).toList();
+        return new CallRCommand(def.apply(var), getFunc(), newArgs);
     }
 
     @Override
@@ -469,16 +568,10 @@ class ArrayLoadCommand extends IRCommand {
     }
 
     @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        ArrayLoadCommand that = (ArrayLoadCommand) o;
-        return Objects.equals(var, that.var) && Objects.equals(arr, that.arr) && Objects.equals(index, that.index) && Objects.equals(block, that.block);
-    }
-
-    @Override
-    public int hashCode() {
-        return Objects.hash(var, arr, index, block);
+    public ArrayLoadCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label) {
+        Array newArr = (Array) use.apply(arr);
+        Argument newIndex = use.apply(index);
+        return new ArrayLoadCommand(def.apply(var), newArr, newIndex);
     }
 
     @Override
@@ -532,18 +625,8 @@ class ArrayStoreCommand extends IRCommand {
     }
 
     @Override
-    public boolean equals(Object o) {
-        if (this == o)
-            return true;
-        if (o == null || getClass() != o.getClass())
-            return false;
-        ArrayStoreCommand that = (ArrayStoreCommand) o;
-        return Objects.equals(arr, that.arr) && Objects.equals(index, that.index) && Objects.equals(value, that.value) && Objects.equals(block, that.block);
-    }
-
-    @Override
-    public int hashCode() {
-        return Objects.hash(arr, index, value, block);
+    public ArrayStoreCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label) {
+        return new ArrayStoreCommand((Array) use.apply(arr), use.apply(index), use.apply(value));
     }
 
     @Override
@@ -604,16 +687,11 @@ class AssignmentCommand extends IRCommand {
     }
 
     @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        AssignmentCommand that = (AssignmentCommand) o;
-        return Objects.equals(var, that.var) && Objects.equals(size, that.size) && Objects.equals(value, that.value) && Objects.equals(block, that.block);
-    }
-
-    @Override
-    public int hashCode() {
-        return Objects.hash(var, size, value, block);
+    public AssignmentCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label) {
+        // array initialisations and copies don't define a variable, the array is only named
+        Argument newValue = use.apply(value);
+        Argument newVar = getDecl().isEmpty() ? use.apply(var) : def.apply(var);
+        return new AssignmentCommand(newVar, size, newValue);
     }
 
     @Override
@@ -655,10 +733,82 @@ class LabelCommand extends IRCommand {
         this.block = block;
     }
 
+    @Override
+    public LabelCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label) {
+        return new LabelCommand(label.apply(this.label));
+    }
+
     @Override
     public String toString() {
         return label + ": ";
     }
 }
 
+// phi function of SSA form, args[k] is the value flowing in from the k-th predecessor of the block
+class PhiCommand extends IRCommand {
+    private Variable dest;
+    private final Argument[] args;
+    private BasicBlocks.Block block;
+
+    public PhiCommand(Variable dest, Argument[] args) {
+        this.dest = dest;
+        this.args = args;
+    }
+
+    public Variable getDest() {
+        return dest;
+    }
+
+    public void setDest(Variable dest) {
+        this.dest = dest;
+    }
+
+    public Argument getArg(int k) {
+        return args[k];
+    }
+
+    public void setArg(int k, Argument arg) {
+        args[k] = arg;
+    }
+
+    public int getNumArgs() {
+        return args.length;
+    }
+
+    @Override
+    public Set<Variable> getUsed() {
+        return extractVars(new HashSet<>(Arrays.asList(args)));
+    }
+
+    @Override
+    public Set<Variable> getDecl() {
+        return Set.of(dest);
+    }
+
+    @Override
+    public BasicBlocks.Block getBlock() {
+        return block;
+    }
+
+    @Override
+    public void setBlock(BasicBlocks.Block block) {
+        this.block = block;
+    }
+
+    @Override
+    public PhiCommand copy(UnaryOperator<Argument> use, UnaryOperator<Argument> def, UnaryOperator<String> label) {
+        Argument[] newArgs = Arrays.stream(args).map(use).toArray(Argument[]::new);
+        return new PhiCommand((Variable) def.apply(dest), newArgs);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("phi, ").append(dest);
+        for(Argument arg: args)
+            builder.append(", ").append(arg);
+        return builder.toString();
+    }
+}
+
 
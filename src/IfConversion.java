@@ -0,0 +1,126 @@
+import java.util.*;
+
+public class IfConversion {
+    // what an arm may cost: a copy is folded into the conditional move, an add, sub, and or or is computed
+    // into a temporary first on both paths. Anything that may trap, like div, or is slow, like mult, stays
+    // behind its branch
+    private final static int COPY_COST = 1;
+    private final static int OPERATION_COST = 2;
+    // both arms together, beyond this the branch is cheaper than running both of them
+    private final static int MAX_COST = 3;
+
+    private final Class c;
+    private final Statistics statistics;
+    private int counter;
+
+    public IfConversion(Class c, Statistics statistics) {
+        this.c = c;
+        this.statistics = statistics;
+    }
+
+    public void convert() {
+        for (String name : new ArrayList<>(c.getFunctions().keySet())) {
+            Function f = c.getFunctions().get(name);
+            Function converted = convert(f);
+            if (converted != f)
+                c.addFunction(converted);
+        }
+    }
+
+    // the blocks of a diamond or triangle are entered only through its branch and the arms are one command
+    // each, so the select can take their place, the join keeps its label only when other blocks jump to it
+    private Function convert(Function f) {
+        BasicBlocks graph = f.getControlFlowGraph();
+        List<IRCommand> commands = new ArrayList<>();
+        List<Variable> locals = new ArrayList<>();
+        int converted = 0;
+        for (int i = 0; i < f.getNumCommands(); ++i) {
+            int length = getDiamond(f, i);
+            if (length == 0)
+                length = getTriangle(f, i);
+            if (length == 0) {
+                commands.add(f.getCommand(i).copy(arg -> arg, arg -> arg, label -> label));
+                continue;
+            }
+            ConditionalBranchCommand branch = (ConditionalBranchCommand) f.getCommand(i);
+            // the else arm falls through the branch, the then arm is where it jumps, a triangle has no then arm
+            IRCommand elseArm = f.getCommand(i + 1);
+            IRCommand thenArm = length == 6 ? f.getCommand(i + 4) : null;
+            Variable dest = getDest(elseArm);
+            Argument ifFalse = getValue(elseArm, commands, locals);
+            Argument ifTrue = thenArm == null ? dest : getValue(thenArm, commands, locals);
+            // both paths leaving the same value need no condition at all
+            if (ifTrue.equals(ifFalse))
+                commands.add(new AssignmentCommand(dest, ifTrue));
+            else
+                commands.add(new SelectCommand(branch.getBranchCommand(), branch.getA(), branch.getB(), dest, ifTrue, ifFalse));
+            int join = i + length - 1;
+            if (graph.getNumPredecessors(graph.getBlockOf(join)) > 2)
+                commands.add(new LabelCommand(((LabelCommand) f.getCommand(join)).getLabel()));
+            i = join;
+            ++converted;
+        }
+        if (converted == 0)
+            return f;
+        statistics.add(f.getFuncName(), "branches if-converted", converted);
+        return f.rebuild(commands, locals);
+    }
+
+    // br a, b, L; x = e; L: keeps x when the branch is taken
+    private int getTriangle(Function f, int i) {
+        if (i + 2 >= f.getNumCommands() || !(f.getCommand(i) instanceof ConditionalBranchCommand branch)
+                || !(f.getCommand(i + 2) instanceof LabelCommand join) || !join.getLabel().equals(branch.getLabel()))
+            return 0;
+        if (!isCondition(branch) || getCost(f.getCommand(i + 1)) > MAX_COST)
+            return 0;
+        return 3;
+    }
+
+    // br a, b, L1; x = e1; goto L2; L1: x = e2; L2:
+    private int getDiamond(Function f, int i) {
+        if (i + 5 >= f.getNumCommands() || !(f.getCommand(i) instanceof ConditionalBranchCommand branch)
+                || !(f.getCommand(i + 2) instanceof GotoCommand jump)
+                || !(f.getCommand(i + 3) instanceof LabelCommand then) || !then.getLabel().equals(branch.getLabel())
+                || !(f.getCommand(i + 5) instanceof LabelCommand join) || !join.getLabel().equals(jump.getLabel()))
+            return 0;
+        BasicBlocks graph = f.getControlFlowGraph();
+        if (!isCondition(branch) || graph.getNumPredecessors(graph.getBlockOf(i + 3)) != 1)
+            return 0;
+        IRCommand elseArm = f.getCommand(i + 1), thenArm = f.getCommand(i + 4);
+        if (getCost(elseArm) + getCost(thenArm) > MAX_COST || !getDest(elseArm).equals(getDest(thenArm)))
+            return 0;
+        return 6;
+    }
+
+    // comparisons of two values of the same type, at least one of them a variable
+    private static boolean isCondition(ConditionalBranchCommand branch) {
+        return branch.getA().getType().equals(branch.getB().getType())
+                && (branch.getA() instanceof Variable || branch.getB() instanceof Variable);
+    }
+
+    private static int getCost(IRCommand arm) {
+        if (arm instanceof AssignmentCommand assign && !assign.getDecl().isEmpty() && !(assign.getValue() instanceof Array)
+                && assign.getValue().getType().equals(assign.getVar().getType()))
+            return COPY_COST;
+        if (arm instanceof BinaryOperatorCommand operation && operation.getDest().getType().equals(Type.Integer)
+                && operation.getA().getType().equals(Type.Integer) && operation.getB().getType().equals(Type.Integer)
+                && Set.of(BinaryOperator.ADD, BinaryOperator.SUB, BinaryOperator.AND, BinaryOperator.OR).contains(operation.getOp()))
+            return OPERATION_COST;
+        return MAX_COST + 1;
+    }
+
+    private static Variable getDest(IRCommand arm) {
+        return arm.getDecl().iterator().next();
+    }
+
+    // the value an arm assigns, an operation is computed into a fresh temporary first
+    private Argument getValue(IRCommand arm, List<IRCommand> commands, List<Variable> locals) {
+        if (arm instanceof AssignmentCommand assign)
+            return assign.getValue();
+        BinaryOperatorCommand operation = (BinaryOperatorCommand) arm;
+        Variable temp = new Variable("__SELECT__" + counter++, Type.Integer);
+        locals.add(temp);
+        commands.add(new BinaryOperatorCommand(operation.getOp(), operation.getA(), operation.getB(), temp));
+        return temp;
+    }
+}
@@ -0,0 +1,238 @@
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+public class Inliner {
+    // commands a call costs beyond its arguments: the jal, the return value move, and the callee's prolog,
+    // epilogue and jr
+    private final static int CALL_COST = 8;
+    // callees this small are inlined wherever the budget allows, they are not much bigger than the call and
+    // hardly add to the register pressure
+    private final static int ALWAYS_INLINE_SIZE = 10;
+    private final static int MAX_INLINE_SIZE = 200;
+    // callers aren't grown past this, the allocators are quadratic in the size of a function
+    private final static int MAX_CALLER_SIZE = 2000;
+    private final static int MAX_LOOP_DEPTH = 3;
+    // registers the allocators hand out to variables, roughly, once their scratch registers are set aside. A
+    // copy that needs more than these together with the caller's values live around it spills in the caller,
+    // which costs more than the saves and restores of the call
+    private final static int INT_REGISTERS = 12;
+    private final static int FLOAT_REGISTERS = 8;
+
+    private final Class c;
+    private final Statistics statistics;
+    // commands the whole program may grow by, a percentage of its size before inlining
+    private int budget;
+    // call sites left in the program for every function
+    private final Map<String, Integer> callSites;
+    private final Set<String> inlined;
+    private int counter;
+    private final Map<Function, int[]> pressure;
+    private final Profile profile;
+
+    public Inliner(Class c, Statistics statistics, int growth, Profile profile) {
+        this.c = c;
+        this.statistics = statistics;
+        this.profile = profile;
+        this.callSites = new HashMap<>();
+        this.inlined = new HashSet<>();
+        this.pressure = new HashMap<>();
+        int size = 0;
+        for (Function f : c.getFunctions().values()) {
+            size += getSize(f);
+            for (int i = 0; i < f.getNumCommands(); ++i)
+                if (f.getCommand(i) instanceof CallCommand call)
+                    callSites.merge(call.getFunc(), 1, Integer::sum);
+        }
+        this.budget = size * growth / 100;
+    }
+
+    // commands that turn into instructions, labels don't
+    private static int getSize(Function f) {
+        int size = 0;
+        for (int i = 0; i < f.getNumCommands(); ++i)
+            if (!(f.getCommand(i) instanceof LabelCommand))
+                ++size;
+        return size;
+    }
+
+    // callees are done before their callers so what gets copied is already inlined into, then the functions
+    // every call site of which was inlined are dropped
+    public void inline() {
+        CallGraph callGraph = new CallGraph(c);
+        for (String name : callGraph.getBottomUpOrder())
+            inline(c.getFunctions().get(name), callGraph);
+        for (String name : inlined)
+            if (!name.equals("main") && callSites.getOrDefault(name, 0) == 0)
+                c.removeFunction(name);
+    }
+
+    private boolean isCandidate(Function caller, CallCommand call, CallGraph callGraph) {
+        Function callee = c.getFunctions().get(call.getFunc());
+        return callee != null && callee != caller && !callGraph.isRecursive(callee.getFuncName())
+                && getSize(callee) <= MAX_INLINE_SIZE;
+    }
+
+    // the function's own scalars among the variables, globals and arrays never take a register
+    private static int count(Set<Variable> vars, Function f, Type type) {
+        int count = 0;
+        for (Variable var : vars)
+            if (var.getType().equals(type) && (f.isLocalVariable(var) || f.getArguments().contains(var)))
+                ++count;
+        return count;
+    }
+
+    // most int and float variables live at once in the function
+    private int[] getPressure(Function f) {
+        return pressure.computeIfAbsent(f, k -> {
+            LiveSet liveSet = new LiveSet(f);
+            int[] max = new int[2];
+            for (int i = 0; i < liveSet.getSize(); ++i) {
+                Set<Variable> live = new HashSet<>(liveSet.getOutSet(i));
+                live.addAll(f.getCommand(i).getUsed());
+                max[0] = Math.max(max[0], count(live, f, Type.Integer));
+                max[1] = Math.max(max[1], count(live, f, Type.Float));
+            }
+            return max;
+        });
+    }
+
+    private boolean fits(Function caller, LiveSet liveSet, CallCommand call, Function callee) {
+        Set<Variable> through = new HashSet<>(liveSet.getOutSet(call.getPosition()));
+        through.removeAll(call.getDecl());
+        int[] max = getPressure(callee);
+        return count(through, caller, Type.Integer) + max[0] <= INT_REGISTERS
+                && count(through, caller, Type.Float) + max[1] <= FLOAT_REGISTERS;
+    }
+
+    // a call saves its cost once per execution, calls in loops run about ten times as often per level unless
+    // the profile tells how often they ran
+    private static double getBenefit(CallCommand call, double frequency) {
+        return (CALL_COST + call.getArgs().size()) * frequency;
+    }
+
+    private static double getFrequency(int loopDepth) {
+        return Math.pow(10, Math.min(loopDepth, MAX_LOOP_DEPTH));
+    }
+
+    // sites with the best benefit per copied command go first while the budget lasts, the only call site of a
+    // function costs nothing since the function is dropped afterwards
+    private void inline(Function caller, CallGraph callGraph) {
+        LoopInfo loops = new LoopInfo(caller.getControlFlowGraph());
+        LiveSet liveSet = new LiveSet(caller);
+        List<Integer> sites = new ArrayList<>();
+        for (int i = 0; i < caller.getNumCommands(); ++i)
+            if (caller.getCommand(i) instanceof CallCommand call && isCandidate(caller, call, callGraph)
+                    && (getSize(c.getFunctions().get(call.getFunc())) <= ALWAYS_INLINE_SIZE
+                        || fits(caller, liveSet, call, c.getFunctions().get(call.getFunc()))))
+                sites.add(i);
+        if (sites.isEmpty())
+            return;
+        double[] counts = profile == null ? null : profile.getCounts(caller);
+        Map<Integer, Double> priority = new HashMap<>();
+        for (int i : sites) {
+            CallCommand call = (CallCommand) caller.getCommand(i);
+            int block = caller.getControlFlowGraph().getBlockOf(i);
+            double frequency = counts != null ? counts[block] : getFrequency(loops.getLoopDepth(block));
+            priority.put(i, getBenefit(call, frequency) / getSize(c.getFunctions().get(call.getFunc())));
+        }
+        sites.sort(Comparator.comparingDouble(i -> -priority.get(i)));
+
+        Set<Integer> chosen = new HashSet<>();
+        int callerSize = getSize(caller);
+        for (int i : sites) {
+            CallCommand call = (CallCommand) caller.getCommand(i);
+            int size = getSize(c.getFunctions().get(call.getFunc()));
+            boolean only = callSites.get(call.getFunc()) == 1 && !call.getFunc().equals("main");
+            int cost = only ? 0 : size;
+            if (!only && size > ALWAYS_INLINE_SIZE && priority.get(i) < 1)
+                continue;
+            if (cost > budget || callerSize + size > MAX_CALLER_SIZE)
+                continue;
+            budget -= cost;
+            callerSize += size;
+            chosen.add(i);
+            callSites.merge(call.getFunc(), -1, Integer::sum);
+        }
+        if (chosen.isEmpty())
+            return;
+
+        // a profiled caller keeps its counts, with the copies counted as the share of the callee's runs their
+        // call site made
+        List<IRCommand> commands = new ArrayList<>();
+        List<Variable> locals = new ArrayList<>();
+        List<Double> commandCounts = new ArrayList<>();
+        for (int i = 0; i < caller.getNumCommands(); ++i) {
+            IRCommand command = caller.getCommand(i);
+            double count = counts != null ? counts[caller.getControlFlowGraph().getBlockOf(i)] : 0;
+            if (chosen.contains(i)) {
+                expand((CallCommand) command, commands, locals, count, commandCounts);
+            } else {
+                commands.add(command.copy(arg -> arg, arg -> arg, label -> label));
+                commandCounts.add(count);
+            }
+        }
+        Function inlinedInto = caller.rebuild(commands, locals);
+        if (counts != null)
+            profile.setCounts(inlinedInto, commandCounts);
+        c.addFunction(inlinedInto);
+        statistics.add(caller.getFuncName(), "inlined calls", chosen.size());
+    }
+
+    // the callee's commands with its arguments and locals renamed apart, the arguments assigned first and every
+    // return turned into an assignment of the result and a jump past the copy. Each command added comes with
+    // the count of its block, taken out of the callee's own counts
+    private void expand(CallCommand call, List<IRCommand> commands, List<Variable> locals, double count,
+                        List<Double> commandCounts) {
+        Function callee = c.getFunctions().get(call.getFunc());
+        String prefix = "__INLINE__" + counter++ + "_";
+        String exit = prefix + "_EXIT";
+        inlined.add(callee.getFuncName());
+
+        Map<Variable, Variable> renamed = new HashMap<>();
+        for (var declared : List.of(callee.getArguments(), callee.getLocalVariables()))
+            for (Variable var : declared) {
+                Variable copy = var instanceof Array ?
+                        new Array(prefix + var.getName(), var.getType(), var.getSize() / var.getType().getSize()) :
+                        new Variable(prefix + var.getName(), var.getType());
+                renamed.put(var, copy);
+                locals.add(copy);
+            }
+        UnaryOperator<Argument> rename = arg -> renamed.containsKey(arg) ? renamed.get(arg) : arg;
+
+        double[] calleeCounts = profile == null ? null : profile.getCounts(callee);
+        double share = calleeCounts == null || calleeCounts[0] == 0 ? 0 : Math.min(1, count / calleeCounts[0]);
+        int start = commands.size();
+        for (int k = 0; k < callee.getArguments().size(); ++k)
+            commands.add(new AssignmentCommand(renamed.get(callee.getArguments().get(k)), call.getArgs().get(k)));
+        pad(commandCounts, start, commands.size(), count);
+        int last = callee.getNumCommands() - 1;
+        for (int i = 0; i < callee.getNumCommands(); ++i) {
+            IRCommand command = callee.getCommand(i);
+            start = commands.size();
+            if (command instanceof ReturnCommand ret) {
+                if (call instanceof CallRCommand callr && ret.getReturnValue() != null)
+                    commands.add(new AssignmentCommand(callr.getVar(), rename.apply(ret.getReturnValue())));
+                if (i != last)
+                    commands.add(new GotoCommand(exit));
+            } else {
+                if (command instanceof CallCommand inner)
+                    callSites.merge(inner.getFunc(), 1, Integer::sum);
+                commands.add(command.copy(rename, rename, label -> prefix + label));
+            }
+            double blockCount = calleeCounts == null ? count : calleeCounts[callee.getControlFlowGraph().getBlockOf(i)] * share;
+            pad(commandCounts, start, commands.size(), blockCount);
+        }
+        commands.add(new LabelCommand(exit));
+        commandCounts.add(count);
+        if (calleeCounts != null) {
+            for (int b = 0; b < calleeCounts.length; ++b)
+                calleeCounts[b] *= 1 - share;
+            profile.setCounts(callee, calleeCounts);
+        }
+    }
+
+    private static void pad(List<Double> commandCounts, int from, int to, double count) {
+        for (int i = from; i < to; ++i)
+            commandCounts.add(count);
+    }
+}
@@ -0,0 +1,318 @@
+import java.util.*;
+
+public class InstructionScheduler {
+    // cycles after a load, or a compare setting the float condition bit, before the next instruction can read
+    // its result without stalling, anything else is ready the cycle after it issues
+    private final static int LOAD_LATENCY = 2;
+    private final static int COMPARE_LATENCY = 2;
+
+    private final Set<String> functionNames;
+    private final Statistics statistics;
+    private final boolean fillDelaySlots;
+    private String funcName;
+
+    public InstructionScheduler(Class c, Statistics statistics, boolean fillDelaySlots) {
+        this.functionNames = c.getFunctions().keySet();
+        this.statistics = statistics;
+        this.fillDelaySlots = fillDelaySlots;
+    }
+
+    // an instruction of a region with the comments in front of it and the ones it has to wait for, as
+    // pairs of their index in the region and how many cycles after them it may issue
+    private static class Node {
+        final int index;
+        final MIPSCommand command;
+        final List<MIPSCommand> comments;
+        final List<int[]> predecessors;
+        int successors;
+        int height;
+
+        Node(int index, MIPSCommand command, List<MIPSCommand> comments) {
+            this.index = index;
+            this.command = command;
+            this.comments = comments;
+            this.predecessors = new ArrayList<>();
+        }
+    }
+
+    // the instructions between two barriers are reordered on their own, a comment stays in front of the
+    // instruction after it. Filling delay slots turns off the assembler's reordering, so every branch,
+    // jump and call is followed by the instruction running in its slot, or a nop
+    public List<MIPSCommand> schedule(List<MIPSCommand> commandList) {
+        List<MIPSCommand> commands = new ArrayList<>();
+        List<MIPSCommand> region = new ArrayList<>();
+        funcName = null;
+        for (MIPSCommand command : commandList) {
+            if (!PeepholeOptimizer.isBarrier(command)) {
+                region.add(command);
+                continue;
+            }
+            commands.addAll(schedule(region, command));
+            region.clear();
+            if (command instanceof LabelMIPSCommand && functionNames.contains(((LabelMIPSCommand) command).getLabel()))
+                funcName = ((LabelMIPSCommand) command).getLabel();
+            if (fillDelaySlots && command instanceof AssemblerDirectiveCommand
+                    && ((AssemblerDirectiveCommand) command).getDirective().equals("text"))
+                commands.add(new AssemblerDirectiveCommand("set", List.of("noreorder")));
+        }
+        commands.addAll(schedule(region, null));
+        return commands;
+    }
+
+    private void count(String counter, int value) {
+        if (funcName != null && value > 0)
+            statistics.add(funcName, counter, value);
+    }
+
+    private static boolean isControlTransfer(MIPSCommand command) {
+        return command instanceof BranchMIPSCommand || command instanceof FloatBranchMIPSCommand
+                || command instanceof JumpMIPSCommand || command instanceof ReturnMIPSCommand
+                || command instanceof CallMIPSCommand;
+    }
+
+    // the region in its new order followed by the barrier ending it, and the delay slot after that
+    private List<MIPSCommand> schedule(List<MIPSCommand> region, MIPSCommand barrier) {
+        List<Node> nodes = new ArrayList<>();
+        List<MIPSCommand> comments = new ArrayList<>();
+        for (MIPSCommand command : region) {
+            if (command instanceof CommentMIPSCommand) {
+                comments.add(command);
+            } else {
+                nodes.add(new Node(nodes.size(), command, comments));
+                comments = new ArrayList<>();
+            }
+        }
+        List<Register> terminatorUses = barrier != null && isControlTransfer(barrier) ? barrier.getUses() : List.of();
+        buildGraph(nodes, terminatorUses);
+
+        List<Node> order = listSchedule(nodes);
+        int before = getStalls(nodes, nodes.size(), terminatorUses), after = getStalls(order, nodes.size(), terminatorUses);
+        if (after < before)
+            count("stall cycles hidden", before - after);
+        else
+            order = nodes;
+
+        Node slot = null;
+        if (fillDelaySlots && barrier != null && isControlTransfer(barrier)) {
+            slot = getDelaySlot(order, nodes.size(), barrier);
+            if (slot != null) {
+                order = new ArrayList<>(order);
+                order.remove(slot);
+                count("delay slots filled", 1);
+            }
+        }
+
+        List<MIPSCommand> commands = new ArrayList<>();
+        for (Node node : order) {
+            commands.addAll(node.comments);
+            commands.add(node.command);
+        }
+        commands.addAll(comments);
+        if (barrier != null)
+            commands.add(barrier);
+        if (slot != null) {
+            commands.addAll(slot.comments);
+            commands.add(slot.command);
+        } else if (fillDelaySlots && barrier != null && isControlTransfer(barrier)) {
+            commands.add(new NopMIPSCommand());
+        }
+        return commands;
+    }
+
+    private static int getLatency(MIPSCommand command) {
+        if (command instanceof LoadMIPSCommand)
+            return LOAD_LATENCY;
+        if (command instanceof FloatCompareMIPSCommand)
+            return COMPARE_LATENCY;
+        return 1;
+    }
+
+    private static boolean intersects(List<Register> a, List<Register> b) {
+        for (Register r : a)
+            if (PeepholeOptimizer.mentions(b, r))
+                return true;
+        return false;
+    }
+
+    // the address a load or store touches, null for anything else
+    private static Register getAddress(MIPSCommand command) {
+        if (command instanceof LoadMIPSCommand load)
+            return load.getOrigin() instanceof Register ? (Register) load.getOrigin() : null;
+        if (command instanceof StoreMIPSCommand store)
+            return store.getDest();
+        return null;
+    }
+
+    private static boolean isMemoryAccess(MIPSCommand command) {
+        return command instanceof LoadMIPSCommand || command instanceof StoreMIPSCommand;
+    }
+
+    // a store stays on its side of every load or store that may touch the same word, a load of the other
+    // loads. An address that isn't a register may be anything
+    private static boolean conflictsInMemory(MIPSCommand a, MIPSCommand b) {
+        if (!isMemoryAccess(a) || !isMemoryAccess(b) || (!(a instanceof StoreMIPSCommand) && !(b instanceof StoreMIPSCommand)))
+            return false;
+        Register x = getAddress(a), y = getAddress(b);
+        return x == null || y == null || PeepholeOptimizer.mayAlias(x, y);
+    }
+
+    // a read waits for the latency of the write before it, writes keep their order with every read and
+    // write of the register around them. The height is the longest path to the end of the region, counting
+    // the branch reading a result
+    private static void buildGraph(List<Node> nodes, List<Register> terminatorUses) {
+        for (int j = 0; j < nodes.size(); ++j) {
+            MIPSCommand b = nodes.get(j).command;
+            for (int i = 0; i < j; ++i) {
+                MIPSCommand a = nodes.get(i).command;
+                int latency = 0;
+                if (intersects(a.getDefs(), b.getUses()))
+                    latency = getLatency(a);
+                else if (intersects(a.getUses(), b.getDefs()) || intersects(a.getDefs(), b.getDefs()) || conflictsInMemory(a, b))
+                    latency = 1;
+                if (latency > 0) {
+                    nodes.get(j).predecessors.add(new int[]{i, latency});
+                    ++nodes.get(i).successors;
+                }
+            }
+        }
+        for (int i = nodes.size() - 1; i >= 0; --i) {
+            Node node = nodes.get(i);
+            node.height = Math.max(node.height, intersects(node.command.getDefs(), terminatorUses) ? getLatency(node.command) : 1);
+            for (int[] edge : node.predecessors) {
+                Node predecessor = nodes.get(edge[0]);
+                predecessor.height = Math.max(predecessor.height, edge[1] + node.height);
+            }
+        }
+    }
+
+    // every cycle the ready instruction with the longest path after it issues, the earliest one first when
+    // paths are equally long. When nothing is ready the pipeline waits for whatever is ready first
+    private static List<Node> listSchedule(List<Node> nodes) {
+        int n = nodes.size();
+        int[] waiting = new int[n], ready = new int[n], issued = new int[n];
+        List<Node> candidates = new ArrayList<>();
+        for (Node node : nodes) {
+            waiting[node.index] = node.predecessors.size();
+            if (waiting[node.index] == 0)
+                candidates.add(node);
+        }
+        List<List<Node>> successors = new ArrayList<>();
+        for (int i = 0; i < n; ++i)
+            successors.add(new ArrayList<>());
+        for (Node node : nodes)
+            for (int[] edge : node.predecessors)
+                successors.get(edge[0]).add(node);
+
+        List<Node> order = new ArrayList<>();
+        int cycle = 0;
+        while (!candidates.isEmpty()) {
+            int first = Integer.MAX_VALUE;
+            for (Node node : candidates)
+                first = Math.min(first, ready[node.index]);
+            cycle = Math.max(cycle, first);
+            Node best = null;
+            for (Node node : candidates)
+                if (ready[node.index] <= cycle && (best == null || node.height > best.height
+                        || (node.height == best.height && node.index < best.index)))
+                    best = node;
+            candidates.remove(best);
+            order.add(best);
+            issued[best.index] = cycle++;
+            for (Node successor : successors.get(best.index)) {
+                int latency = 0;
+                for (int[] edge : successor.predecessors)
+                    if (edge[0] == best.index)
+                        latency = edge[1];
+                ready[successor.index] = Math.max(ready[successor.index], issued[best.index] + latency);
+                if (--waiting[successor.index] == 0)
+                    candidates.add(successor);
+            }
+        }
+        return order;
+    }
+
+    // cycles an in order pipeline issuing one instruction a cycle spends waiting on the given order,
+    // including the wait of the branch ending it
+    private static int getStalls(List<Node> order, int n, List<Register> terminatorUses) {
+        int[] issued = new int[n];
+        Arrays.fill(issued, -1);
+        int cycle = 0, stalls = 0;
+        for (Node node : order) {
+            int start = cycle;
+            for (int[] edge : node.predecessors)
+                if (issued[edge[0]] >= 0)
+                    start = Math.max(start, issued[edge[0]] + edge[1]);
+            stalls += start - cycle;
+            issued[node.index] = start;
+            cycle = start + 1;
+        }
+        int start = cycle;
+        for (Node node : order)
+            if (intersects(node.command.getDefs(), terminatorUses))
+                start = Math.max(start, issued[node.index] + getLatency(node.command));
+        return stalls + start - cycle;
+    }
+
+    // an instruction nothing after it depends on can run in the slot after the branch instead, unless it
+    // touches a register the branch reads or writes. Of those the one whose absence costs the fewest
+    // stalls goes, the latest one when that is a tie
+    private static Node getDelaySlot(List<Node> order, int n, MIPSCommand barrier) {
+        List<Register> uses = barrier.getUses(), defs = barrier.getDefs();
+        Node best = null;
+        int fewest = Integer.MAX_VALUE;
+        for (Node node : order) {
+            MIPSCommand command = node.command;
+            if (node.successors > 0 || !isSingleInstruction(command) || intersects(command.getDefs(), uses)
+                    || intersects(command.getUses(), defs) || intersects(command.getDefs(), defs))
+                continue;
+            List<Node> rest = new ArrayList<>(order);
+            rest.remove(node);
+            int stalls = getStalls(rest, n, uses);
+            if (stalls <= fewest) {
+                fewest = stalls;
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    private static boolean fits(Constant constant, long min, long max) {
+        try {
+            long value = Long.parseLong(constant.getValue());
+            return value >= min && value <= max;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean fitsOffset(Register address) {
+        return address instanceof Address && ((Address) address).getOffset() >= Translator.MIN_SIGNED_IMMEDIATE
+                && ((Address) address).getOffset() <= Translator.MAX_SIGNED_IMMEDIATE;
+    }
+
+    // only a real instruction fits in a slot, the assembler expands pseudo instructions like la, li.s,
+    // div or an immediate that doesn't fit 16 bits into several
+    private static boolean isSingleInstruction(MIPSCommand command) {
+        if (command instanceof MoveMIPSCommand || command instanceof ShiftMIPSCommand
+                || command instanceof ConditionalMoveMIPSCommand || command instanceof MultiplyMIPSCommand
+                || command instanceof MoveFromHiLoCommand || command instanceof MoveToFloatCommand
+                || command instanceof MoveFromFloatCommand || command instanceof FloatCompareMIPSCommand)
+            return true;
+        if (command instanceof BinaryMIPSCommand binary)
+            return binary.isFloat() || !binary.getOp().equals(BinaryOperator.DIV);
+        if (command instanceof BinaryImmediateMIPSCommand binary)
+            return binary.getOp().equals(BinaryOperator.ADD)
+                    ? fits(binary.getConstant(), Translator.MIN_SIGNED_IMMEDIATE, Translator.MAX_SIGNED_IMMEDIATE)
+                    : fits(binary.getConstant(), 0, Translator.MAX_UNSIGNED_IMMEDIATE);
+        if (command instanceof SetLessThanMIPSCommand compare)
+            return !(compare.getB() instanceof Constant)
+                    || fits((Constant) compare.getB(), Translator.MIN_SIGNED_IMMEDIATE, Translator.MAX_SIGNED_IMMEDIATE);
+        if (command instanceof LoadIntCommand load)
+            return fits(load.getConstant(), Translator.MIN_SIGNED_IMMEDIATE, Translator.MAX_UNSIGNED_IMMEDIATE);
+        if (command instanceof LoadMIPSCommand load)
+            return load.getOrigin() instanceof Register && fitsOffset((Register) load.getOrigin());
+        if (command instanceof StoreMIPSCommand store)
+            return fitsOffset(store.getDest());
+        return false;
+    }
+}
@@ -1,141 +1,634 @@
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class InterferenceGraph {
 
-    Map<Argument, Node> intNodes;
-    Map<Argument, Node> floatNodes;
+    private final Function function;
+    private final RegisterClass intNodes;
+    private final RegisterClass floatNodes;
+    // node id of every function variable inside its register class, -1 for variables that aren't allocated
+    private final int[] nodeOf;
+    // short lived node colored for a spilled variable at one command, keyed by position * variables + variable id
+    private final Map<Long, Integer> spillNodes;
+    private int numCoalesced;
+    private int numSpillRounds;
+    private int numSpilled;
 
-    public InterferenceGraph(LiveSet liveSet, final Set<Register> intRegisters, final Set<Register> floatRegisters) {
-        init(liveSet);
-        color(intRegisters, true);
-        color(floatRegisters, false);
+    // colors are the caller saved registers followed by the callee saved ones, so the lowest free color
+    // keeps a callee saved register back for the variables live across a call, which can't take the
+    // registers the calls they cross overwrite
+    public InterferenceGraph(LiveSet liveSet, final List<Register> intCallerSaved, final List<Register> intCalleeSaved,
+                             final List<Register> floatCallerSaved, final List<Register> floatCalleeSaved,
+                             final Map<Variable, Set<String>> callClobbers, final double[] blockCounts) {
+        this.function = liveSet.getFunction();
+        List<Register> intRegisters = new ArrayList<>(intCallerSaved);
+        intRegisters.addAll(intCalleeSaved);
+        List<Register> floatRegisters = new ArrayList<>(floatCallerSaved);
+        floatRegisters.addAll(floatCalleeSaved);
+        this.intNodes = new RegisterClass(intRegisters);
+        this.floatNodes = new RegisterClass(floatRegisters);
+        this.nodeOf = new int[function.getNumVariables()];
+        this.spillNodes = new HashMap<>();
+        init(liveSet, callClobbers, blockCounts);
+        numCoalesced = coalesce(intNodes, intRegisters.size()) + coalesce(floatNodes, floatRegisters.size());
+        allocate(intNodes, intRegisters, liveSet);
+        allocate(floatNodes, floatRegisters, liveSet);
     }
 
-    private void init(LiveSet liveSet){
-        for (int i = 0; i < liveSet.getSize(); ++i){
-            List<Node> aliveNodes = new ArrayList<>();
-            for(Argument var: liveSet.getSet(i)){
-                Map<Argument, Node> varNodes = var.getType().equals(Type.Float) ? floatNodes : intNodes;
-                aliveNodes.add(varNodes.computeIfAbsent(var, Node::new));
+    // number of copies whose source and destination were merged into one node
+    public int getNumCoalesced() {
+        return numCoalesced;
+    }
+
+    public int getNumSpillRounds() {
+        return numSpillRounds;
+    }
+
+    public int getNumSpilled() {
+        return numSpilled;
+    }
+
+    private RegisterClass getRegisterClass(Argument arg) {
+        return arg.getType().equals(Type.Float) ? floatNodes : intNodes;
+    }
+
+    private void init(LiveSet liveSet, Map<Variable, Set<String>> callClobbers, double[] blockCounts){
+        for (int v = 0; v < function.getNumVariables(); ++v) {
+            Variable var = function.getVariableById(v);
+            nodeOf[v] = function.isLocalVariable(var) ? getRegisterClass(var).addNode(var) : -1;
+        }
+        intNodes.initEdges();
+        floatNodes.initEdges();
+        initWeights(blockCounts);
+        for (var clobbers : callClobbers.entrySet()) {
+            int node = nodeOf[function.getVariableId(clobbers.getKey())];
+            if (node != -1)
+                getRegisterClass(clobbers.getKey()).addClobbers(node, clobbers.getValue());
+        }
+
+        // every variable defined by an instruction interferes with everything live right after it,
+        // except for the source of a copy which holds the same value
+        for (int i = 0; i < liveSet.getSize(); ++i) {
+            BitSet out = liveSet.getOutBits(i);
+            IRCommand command = function.getCommand(i);
+            Variable source = getCopySource(command);
+            for (Variable def : command.getDecl()) {
+                int d = nodeOf[function.getVariableId(def)];
+                if (d == -1)
+                    continue;
+                RegisterClass nodes = getRegisterClass(def);
+                int s = source == null ? -1 : nodeOf[function.getVariableId(source)];
+                if (s != -1)
+                    nodes.addMove(d, s);
+                for (int v = out.nextSetBit(0); v >= 0; v = out.nextSetBit(v + 1)) {
+                    int n = nodeOf[v];
+                    if (n != -1 && n != s && function.getVariableById(v).getType().equals(def.getType()))
+                        nodes.addEdge(d, n);
+                }
             }
         }
     }
 
-    private void addInterference(Node one, Node two){
-        one.addInterference(two);
-        two.addInterference(one);
+    // spill weight of a node is its number of uses and definitions, each counted as 10^loop depth, or as
+    // often as its block ran when there is a profile
+    private void initWeights(double[] blockCounts) {
+        BasicBlocks graph = function.getControlFlowGraph();
+        LoopInfo loops = new LoopInfo(graph);
+        for (int i = 0; i < function.getNumCommands(); ++i) {
+            IRCommand command = function.getCommand(i);
+            int b = graph.getBlockOf(i);
+            double weight = blockCounts != null ? blockCounts[b] : Math.pow(10, loops.getLoopDepth(b));
+            for (Variable var : command.getUsed())
+                addWeight(var, weight);
+            for (Variable var : command.getDecl())
+                addWeight(var, weight);
+        }
+    }
+
+    private void addWeight(Variable var, double weight) {
+        int node = nodeOf[function.getVariableId(var)];
+        if (node != -1)
+            getRegisterClass(var).weight[node] += weight;
+    }
+
+    // variable copied by a register to register assignment of the same type, null for any other command
+    private Variable getCopySource(IRCommand command) {
+        if (!(command instanceof AssignmentCommand assign) || assign.getSize() != 0)
+            return null;
+        if (!(assign.getValue() instanceof Variable value) || value instanceof Array)
+            return null;
+        return value.getType().equals(assign.getVar().getType()) ? value : null;
+    }
+
+    private int getNode(Argument arg) {
+        if (!(arg instanceof Variable))
+            return -1;
+        Integer id = function.getVariableId((Variable) arg);
+        return id == null ? -1 : nodeOf[id];
+    }
+
+    public boolean interferes(Variable a, Variable b) {
+        int x = getNode(a), y = getNode(b);
+        if (x == -1 || y == -1 || !a.getType().equals(b.getType()))
+            return false;
+        RegisterClass nodes = getRegisterClass(a);
+        return nodes.interferes(nodes.find(x), nodes.find(y));
+    }
+
+    public Register getRegister(Argument arg) {
+        int n = getNode(arg);
+        if (n == -1)
+            return null;
+        return getRegisterClass(arg).registers[n];
+    }
+
+    // register a spilled variable is loaded into or computed in by the command at the given position,
+    // null when the variable isn't spilled or no register was left for it
+    public Register getSpillRegister(Variable var, int position) {
+        Integer id = function.getVariableId(var);
+        if (id == null)
+            return null;
+        Integer node = spillNodes.get(spillKey(position, id));
+        return node == null ? null : getRegisterClass(var).registers[node];
+    }
+
+    private long spillKey(int position, int id) {
+        return (long) position * function.getNumVariables() + id;
     }
 
-    private void addInterference(List<Node> nodes){
-        for (int i = 0; i < nodes.size(); ++i){
-            for (int j = 0; j < nodes.size(); ++j){
-                if (i == j)
+    // colors the graph, spills whatever stayed uncolored into one node per command that touches it and
+    // colors again until every node left has a register
+    private void allocate(RegisterClass nodes, final List<Register> registers, LiveSet liveSet) {
+        color(nodes, registers);
+        while (true) {
+            Set<Integer> uncolored = new LinkedHashSet<>();
+            for (int node = 0; node < nodes.size(); ++node) {
+                if (nodes.find(node) != node || nodes.spilled[node] || nodes.colors[node] != -1)
                     continue;
-                nodes.get(i).addInterference(nodes.get(j));
-                nodes.get(j).addInterference(nodes.get(i));
+                if (!nodes.temporary[node])
+                    uncolored.add(node);
+                else if (cheapestNeighbour(nodes, node) != -1)
+                    // a short lived node can't go to memory, the cheapest variable live around it goes instead
+                    uncolored.add(cheapestNeighbour(nodes, node));
             }
+            if (uncolored.isEmpty())
+                return;
+            ++numSpillRounds;
+            spill(nodes, uncolored, liveSet);
+            color(nodes, registers);
         }
     }
 
-    public Register getRegister(Argument arg) {
-        Node n;
-        if (arg.getType().equals(Type.Integer))
-            n = intNodes.get(arg);
-        else
-            n = floatNodes.get(arg);
-        if (n != null)
-            return n.getRegister();
-        return null;
+    private int cheapestNeighbour(RegisterClass nodes, int node) {
+        int best = -1;
+        for (int j = 0; j < nodes.degree[node]; ++j) {
+            int t = nodes.adjacency[node][j];
+            if (!nodes.temporary[t] && (best == -1 || nodes.weight[t] < nodes.weight[best]))
+                best = t;
+        }
+        return best;
     }
 
-    private void color(final Set<Register> registers, boolean isInt) {
-        Map<Argument, Node> nodes = new HashMap<>(isInt ? intNodes : floatNodes);
+    // only the spilled nodes and their neighbours are touched, the rest of the graph stays as it is
+    private void spill(RegisterClass nodes, Set<Integer> uncolored, LiveSet liveSet) {
+        boolean[] fresh = new boolean[nodes.size()];
+        for (int node : uncolored) {
+            nodes.spill(node);
+            fresh[node] = true;
+        }
 
-        PriorityQueue<Node> pqueue = new PriorityQueue<>(Comparator.comparingInt(Node::getSpillCost).reversed());
-        for (Node node: nodes.values()) { pqueue.add(node); }
+        boolean[] spilledVar = new boolean[function.getNumVariables()];
+        for (int v = 0; v < spilledVar.length; ++v) {
+            Variable var = function.getVariableById(v);
+            int node = nodeOf[v];
+            if (node != -1 && getRegisterClass(var) == nodes && fresh[nodes.find(node)]) {
+                spilledVar[v] = true;
+                ++numSpilled;
+            }
+        }
 
-        java.util.Stack<Node> stack = new java.util.Stack<>();
-        while (!pqueue.isEmpty()) {
-            Node node = pqueue.poll();
-            node.onStack = true;
+        for (int i = 0; i < function.getNumCommands(); ++i) {
+            IRCommand command = function.getCommand(i);
+            // call arguments without a register are loaded by the translator itself
+            Set<Variable> touched = new HashSet<>(command.getDecl());
+            if (!(command instanceof CallCommand))
+                touched.addAll(command.getUsed());
+            for (Variable var : touched) {
+                int id = function.getVariableId(var);
+                if (!spilledVar[id])
+                    continue;
+                int temp = nodes.addTemporary(var);
+                spillNodes.put(spillKey(i, id), temp);
+                addSpillEdges(nodes, temp, liveSet.getInBits(i), var);
+                addSpillEdges(nodes, temp, liveSet.getOutBits(i), var);
+                // other short lived nodes of the same command are in registers at the same time
+                for (Variable other : touched) {
+                    Integer node = spillNodes.get(spillKey(i, function.getVariableId(other)));
+                    if (node != null && other.getType().equals(var.getType()))
+                        nodes.addEdge(temp, node);
+                }
+            }
+        }
+    }
 
-            UpdateNeighbourSpillCosts(node, pqueue);
-            stack.push(node);
+    private void addSpillEdges(RegisterClass nodes, int temp, BitSet live, Variable var) {
+        for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+            int n = nodeOf[v];
+            if (n == -1 || !function.getVariableById(v).getType().equals(var.getType()))
+                continue;
+            n = nodes.find(n);
+            if (!nodes.spilled[n])
+                nodes.addEdge(temp, n);
         }
+    }
 
-        while (!stack.isEmpty()) {
-            Node node = stack.pop();
-            node.onStack = false;
-            colorNode(node, registers);
+    // conservative coalescing of copy related nodes, a pair is merged only when the Briggs test or the
+    // George test shows the merged node can't turn a k-colorable graph into one that isn't
+    private int coalesce(RegisterClass nodes, int k) {
+        int coalesced = 0;
+        boolean changed = true;
+        boolean[] done = new boolean[nodes.moves.size()];
+        while (changed) {
+            changed = false;
+            for (int m = 0; m < nodes.moves.size(); ++m) {
+                if (done[m])
+                    continue;
+                int x = nodes.find(nodes.moves.get(m)[0]);
+                int y = nodes.find(nodes.moves.get(m)[1]);
+                if (x != y) {
+                    if (nodes.interferes(x, y)) {
+                        done[m] = true;
+                        continue;
+                    }
+                    if (!briggsTest(nodes, x, y, k) && !georgeTest(nodes, x, y, k) && !georgeTest(nodes, y, x, k))
+                        continue;
+                    nodes.merge(x, y);
+                    changed = true;
+                }
+                done[m] = true;
+                ++coalesced;
+            }
+        }
+        return coalesced;
+    }
+
+    // the merged node has fewer than k neighbours of significant degree
+    private boolean briggsTest(RegisterClass nodes, int x, int y, int k) {
+        int significant = 0;
+        for (int j = 0; j < nodes.degree[x]; ++j) {
+            int t = nodes.adjacency[x][j];
+            // a neighbour of both loses one edge once they are merged
+            int degree = nodes.interferes(t, y) ? nodes.degree[t] - 1 : nodes.degree[t];
+            if (degree >= k)
+                ++significant;
+        }
+        for (int j = 0; j < nodes.degree[y]; ++j) {
+            int t = nodes.adjacency[y][j];
+            if (!nodes.interferes(t, x) && nodes.degree[t] >= k)
+                ++significant;
         }
+        return significant < k;
     }
 
-    private void colorNode(Node node, Set<Register> registers) {
-        Set<Register> usedRegisters = node.interferences.stream()
-                .filter(n -> node.register != null)
-                .map(Node::getRegister)
-                .collect(Collectors.toSet());
+    // every neighbour of y already interferes with x or has insignificant degree
+    private boolean georgeTest(RegisterClass nodes, int x, int y, int k) {
+        for (int j = 0; j < nodes.degree[y]; ++j) {
+            int t = nodes.adjacency[y][j];
+            if (nodes.degree[t] >= k && !nodes.interferes(t, x))
+                return false;
+        }
+        return true;
+    }
+
+    // Briggs style optimistic coloring: nodes of degree below the number of registers are simplified first,
+    // when none is left the cheapest node to spill is pushed anyway and may still find a color in select
+    private void color(RegisterClass nodes, final List<Register> registers) {
+        int n = nodes.size();
+        int k = registers.size();
+        DegreeBuckets buckets = new DegreeBuckets(nodes.degree, nodes.weight, n);
+        int[] stack = new int[n];
+        int top = 0;
 
-        Set<Register> freeRegisters = new HashSet<>(registers);
-        freeRegisters.removeAll(usedRegisters);
+        while (!buckets.isEmpty()) {
+            int node = buckets.minDegree() < k ? buckets.popMin() : buckets.popCheapest();
+            // coalesced nodes have no edges left and take the color of their representative,
+            // spilled ones are replaced by the short lived nodes of their uses and definitions
+            if (nodes.find(node) != node || nodes.spilled[node])
+                continue;
+            stack[top++] = node;
+            for (int j = 0; j < nodes.degree[node]; ++j)
+                buckets.decrement(nodes.adjacency[node][j]);
+        }
 
-        node.register = freeRegisters.isEmpty() ? null : freeRegisters.iterator().next();
+        Arrays.fill(nodes.colors, -1);
+        while (top > 0) {
+            colorNode(nodes, stack[--top], k);
+        }
+        for (int node = 0; node < n; ++node) {
+            int color = nodes.colors[nodes.find(node)];
+            nodes.registers[node] = color == -1 ? null : registers.get(color);
+        }
     }
 
-    private void UpdateNeighbourSpillCosts(Node node, PriorityQueue<Node> pqueue) {
-        for (Node neighbour: node.interferences) {
-            if (!neighbour.onStack) {
-                pqueue.remove(neighbour);
-                pqueue.add(neighbour);
+    private void colorNode(RegisterClass nodes, int node, int k) {
+        long used = 0;
+        for (int j = 0; j < nodes.degree[node]; ++j) {
+            int color = nodes.colors[nodes.adjacency[node][j]];
+            if (color != -1)
+                used |= 1L << color;
+        }
+        long free = ~used & (k >= 64 ? -1L : (1L << k) - 1);
+        free &= ~nodes.clobbered[node];
+        nodes.colors[node] = free == 0 ? -1 : Long.numberOfTrailingZeros(free);
+    }
+
+    // nodes bucketed by their current degree in intrusive doubly linked lists. Degrees only ever drop,
+    // so the min pointer moves back at most one step per decrement. The remaining nodes are also kept in a
+    // binary heap on spill weight per interference, which only grows as degrees drop, so the cheapest node to
+    // spill sits at its top and a decrement only sifts down.
+    private static class DegreeBuckets {
+        private final int[] degree;
+        private final double[] weight;
+        private final int[] head;
+        private final int[] next;
+        private final int[] prev;
+        private final boolean[] removed;
+        private final int[] heap;
+        private final int[] heapIndex;
+        private int min;
+        private int size;
+
+        DegreeBuckets(int[] initialDegree, double[] weight, int n) {
+            this.degree = Arrays.copyOf(initialDegree, n);
+            this.weight = weight;
+            int maxDegree = 0;
+            for (int d : degree) maxDegree = Math.max(maxDegree, d);
+            this.head = new int[maxDegree + 1];
+            this.next = new int[n];
+            this.prev = new int[n];
+            this.removed = new boolean[n];
+            this.heap = new int[n];
+            this.heapIndex = new int[n];
+            Arrays.fill(head, -1);
+            for (int node = 0; node < n; ++node) {
+                link(node);
+                heap[node] = node;
+                heapIndex[node] = node;
             }
+            this.min = 0;
+            this.size = n;
+            for (int i = n / 2 - 1; i >= 0; --i)
+                siftDown(i);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int minDegree() {
+            while (head[min] == -1) ++min;
+            return min;
+        }
+
+        int popMin() {
+            int node = head[minDegree()];
+            remove(node);
+            return node;
+        }
+
+        // remaining node with the lowest spill weight per interference it would remove
+        int popCheapest() {
+            int node = heap[0];
+            remove(node);
+            return node;
+        }
+
+        void decrement(int node) {
+            if (removed[node])
+                return;
+            unlink(node);
+            --degree[node];
+            link(node);
+            min = Math.min(min, degree[node]);
+            siftDown(heapIndex[node]);
+        }
+
+        private void remove(int node) {
+            unlink(node);
+            removed[node] = true;
+            --size;
+            int i = heapIndex[node];
+            if (i == size)
+                return;
+            int last = heap[size];
+            heap[i] = last;
+            heapIndex[last] = i;
+            siftUp(i);
+            siftDown(heapIndex[last]);
+        }
+
+        // nodes without interferences are never spilled, ties go to the lower node
+        private boolean cheaper(int x, int y) {
+            double costX = degree[x] == 0 ? Double.POSITIVE_INFINITY : weight[x] / degree[x];
+            double costY = degree[y] == 0 ? Double.POSITIVE_INFINITY : weight[y] / degree[y];
+            return costX < costY || (costX == costY && x < y);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0 && cheaper(heap[i], heap[(i - 1) / 2])) {
+                swap(i, (i - 1) / 2);
+                i = (i - 1) / 2;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int cheapest = i;
+                for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; ++child)
+                    if (cheaper(heap[child], heap[cheapest]))
+                        cheapest = child;
+                if (cheapest == i)
+                    return;
+                swap(i, cheapest);
+                i = cheapest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int x = heap[i];
+            heap[i] = heap[j];
+            heap[j] = x;
+            heapIndex[heap[i]] = i;
+            heapIndex[heap[j]] = j;
+        }
+
+        private void link(int node) {
+            int d = degree[node];
+            prev[node] = -1;
+            next[node] = head[d];
+            if (head[d] != -1) prev[head[d]] = node;
+            head[d] = node;
+        }
+
+        private void unlink(int node) {
+            int d = degree[node];
+            if (prev[node] != -1) next[prev[node]] = next[node];
+            else head[d] = next[node];
+            if (next[node] != -1) prev[next[node]] = prev[node];
         }
     }
 
-    static public class Node {
-        private final Argument name;
-        private final Set<Node> interferences;
-        private Register register;
-        private boolean onStack;
+    // nodes of one register type: a triangular bit matrix answers interference queries,
+    // adjacency arrays are kept next to it for walking a node's neighbours
+    private static class RegisterClass {
+        private final List<Variable> variables;
+        private final List<int[]> moves;
+        private long[] matrix;
+        private int[][] adjacency;
+        private int[] degree;
+        private int[] colors;
+        private int[] alias;
+        private double[] weight;
+        private boolean[] spilled;
+        private boolean[] temporary;
+        // colors overwritten by the calls a node lives across
+        private long[] clobbered;
+        private Register[] registers;
+        private final List<Register> colorRegisters;
+
+        RegisterClass(List<Register> colorRegisters) {
+            this.variables = new ArrayList<>();
+            this.moves = new ArrayList<>();
+            this.colorRegisters = colorRegisters;
+        }
+
+        void addClobbers(int node, Set<String> clobbers) {
+            for (int color = 0; color < colorRegisters.size() && color < 64; ++color)
+                if (clobbers.contains(colorRegisters.get(color).getName()))
+                    clobbered[node] |= 1L << color;
+        }
+
+        int addNode(Variable var) {
+            variables.add(var);
+            return variables.size() - 1;
+        }
+
+        int size() {
+            return variables.size();
+        }
+
+        void initEdges() {
+            int n = size();
+            long bits = (long) n * (n - 1) / 2;
+            matrix = new long[(int) ((bits + 63) / 64)];
+            adjacency = new int[n][];
+            degree = new int[n];
+            colors = new int[n];
+            alias = new int[n];
+            weight = new double[n];
+            spilled = new boolean[n];
+            temporary = new boolean[n];
+            clobbered = new long[n];
+            registers = new Register[n];
+            for (int i = 0; i < n; ++i) {
+                adjacency[i] = new int[4];
+                alias[i] = i;
+            }
+        }
+
+        // node for a spilled variable around a single command, it can't be spilled any further
+        int addTemporary(Variable var) {
+            int node = addNode(var);
+            if (node == degree.length) {
+                int capacity = Math.max(4, node * 2);
+                adjacency = Arrays.copyOf(adjacency, capacity);
+                degree = Arrays.copyOf(degree, capacity);
+                colors = Arrays.copyOf(colors, capacity);
+                alias = Arrays.copyOf(alias, capacity);
+                weight = Arrays.copyOf(weight, capacity);
+                spilled = Arrays.copyOf(spilled, capacity);
+                temporary = Arrays.copyOf(temporary, capacity);
+                clobbered = Arrays.copyOf(clobbered, capacity);
+                registers = Arrays.copyOf(registers, capacity);
+            }
+            // rows of the triangular matrix are laid out one after the other, a new node only appends a row
+            long bits = (long) (node + 1) * node / 2;
+            if ((bits + 63) / 64 > matrix.length)
+                matrix = Arrays.copyOf(matrix, (int) Math.max((bits + 63) / 64, matrix.length * 2L));
+            adjacency[node] = new int[4];
+            alias[node] = node;
+            weight[node] = Double.POSITIVE_INFINITY;
+            temporary[node] = true;
+            return node;
+        }
+
+        // drops every edge of a node that goes to memory
+        void spill(int node) {
+            for (int j = 0; j < degree[node]; ++j)
+                removeNeighbour(adjacency[node][j], node);
+            degree[node] = 0;
+            spilled[node] = true;
+        }
 
-        public Node(Argument name) {
-            this.name = name;
-            this.interferences = new HashSet<>();
-            this.register = null;
-            this.onStack = false;
+        void addMove(int a, int b) {
+            if (a != b)
+                moves.add(new int[]{a, b});
         }
 
-        public Argument getName() {
-            return name;
+        int find(int node) {
+            while (alias[node] != node) {
+                alias[node] = alias[alias[node]];
+                node = alias[node];
+            }
+            return node;
         }
 
-        public Set<Node> getInterferences() {
-            return interferences;
+        // folds y into x, afterwards only representatives appear in adjacency arrays
+        void merge(int x, int y) {
+            alias[y] = x;
+            weight[x] += weight[y];
+            clobbered[x] |= clobbered[y];
+            for (int j = 0; j < degree[y]; ++j) {
+                int t = adjacency[y][j];
+                removeNeighbour(t, y);
+                addEdge(x, t);
+            }
+            degree[y] = 0;
         }
 
-        public void addInterference(Node other){
-            interferences.add(other);
+        private void removeNeighbour(int node, int neighbour) {
+            for (int j = 0; j < degree[node]; ++j) {
+                if (adjacency[node][j] == neighbour) {
+                    adjacency[node][j] = adjacency[node][--degree[node]];
+                    return;
+                }
+            }
         }
 
-        public int getSpillCost() {
-            return interferences.stream().reduce(0, (total, node) -> total + (node.onStack ? 0 : 1), Integer::sum);
+        private static long bitIndex(int a, int b) {
+            int hi = Math.max(a, b), lo = Math.min(a, b);
+            return (long) hi * (hi - 1) / 2 + lo;
         }
 
-        public Register getRegister() {
-            return register;
+        boolean interferes(int a, int b) {
+            if (a == b)
+                return false;
+            long bit = bitIndex(a, b);
+            return (matrix[(int) (bit >>> 6)] & (1L << bit)) != 0;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            Node node = (Node) o;
-            return Objects.equals(name, node.name);
+        void addEdge(int a, int b) {
+            if (a == b || interferes(a, b))
+                return;
+            long bit = bitIndex(a, b);
+            matrix[(int) (bit >>> 6)] |= 1L << bit;
+            addNeighbour(a, b);
+            addNeighbour(b, a);
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(name);
+        private void addNeighbour(int node, int neighbour) {
+            if (degree[node] == adjacency[node].length)
+                adjacency[node] = Arrays.copyOf(adjacency[node], degree[node] * 2);
+            adjacency[node][degree[node]++] = neighbour;
         }
     }
 }
@@ -1,60 +1,179 @@
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 public class LiveSet {
-    private final Map<Integer, Set<Variable>> inSets;
-    private final Map<Integer, Set<Variable>> outSets;
     private final Function function;
+    private final BasicBlocks graph;
+
+    // one row per block, bit j of a row stands for function.getVariableById(j)
+    private final BitSet[] blockIn;
+    private final BitSet[] blockOut;
+
+    // per instruction rows, derived from blockOut the first time a block is asked for
+    private final BitSet[] inSets;
+    private final BitSet[] outSets;
 
     public LiveSet(Function function){
         this.function = function;
-        this.inSets = new HashMap<>();
-        this.outSets = new HashMap<>();
+        this.graph = function.getControlFlowGraph();
+        int n = function.getNumCommands();
+        this.blockIn = new BitSet[graph.getNumBlocks()];
+        this.blockOut = new BitSet[graph.getNumBlocks()];
+        this.inSets = new BitSet[n];
+        this.outSets = new BitSet[n];
         init();
     }
 
     public Set<Variable> getSet(Integer i){
-        return inSets.getOrDefault(i, new HashSet<>());
+        computeBlock(graph.getBlockOf(i));
+        return toVariables(inSets[i]);
+    }
+
+    public Set<Variable> getOutSet(Integer i){
+        computeBlock(graph.getBlockOf(i));
+        return toVariables(outSets[i]);
+    }
+
+    // live-in row of instruction i as ids from function.getVariableId, callers must not modify it
+    public BitSet getInBits(int i){
+        computeBlock(graph.getBlockOf(i));
+        return inSets[i];
+    }
+
+    // live-out row of instruction i as ids from function.getVariableId, callers must not modify it
+    public BitSet getOutBits(int i){
+        computeBlock(graph.getBlockOf(i));
+        return outSets[i];
+    }
+
+    // live-in/live-out rows of block b of the function's control flow graph, callers must not modify them
+    public BitSet getBlockInBits(int b){
+        return blockIn[b];
+    }
+
+    public BitSet getBlockOutBits(int b){
+        return blockOut[b];
     }
 
     public Integer getSize(){
-        return inSets.size();
+        return inSets.length;
+    }
+
+    public Function getFunction() {
+        return function;
+    }
+
+    private Set<Variable> toVariables(BitSet bits){
+        Set<Variable> set = new HashSet<>();
+        for(int v = bits.nextSetBit(0); v >= 0; v = bits.nextSetBit(v + 1))
+            set.add(function.getVariableById(v));
+        return set;
+    }
+
+    private BitSet toBits(Set<Variable> vars){
+        BitSet bits = new BitSet(function.getNumVariables());
+        for(var v: vars)
+            bits.set(function.getVariableId(v));
+        return bits;
     }
 
     private void init(){
-        boolean isUpdate;
-        do {
-            isUpdate = false;
-            for (int i = 0; i < function.getNumCommands(); ++i) {
-                Set<Variable> oldOut = outSets.computeIfAbsent(i, x -> new HashSet<>());
-                Set<Variable> oldIn = inSets.computeIfAbsent(i, x -> new HashSet<>());
-                update(i);
-                if(!oldOut.equals(outSets.get(i)) || !oldIn.equals(inSets.get(i)))
-                    isUpdate = true;
+        int numBlocks = graph.getNumBlocks();
+        BitSet[] gen = new BitSet[numBlocks];
+        BitSet[] kill = new BitSet[numBlocks];
+        for(int b = 0; b < numBlocks; ++b){
+            gen[b] = new BitSet(function.getNumVariables());
+            kill[b] = new BitSet(function.getNumVariables());
+            for(int i = graph.getLastCommand(b); i >= graph.getFirstCommand(b); --i){
+                IRCommand command = function.getCommand(i);
+                BitSet decl = toBits(command.getDecl());
+                gen[b].andNot(decl);
+                gen[b].or(toBits(command.getUsed()));
+                kill[b].or(decl);
             }
-        }while(isUpdate);
+            blockIn[b] = new BitSet(function.getNumVariables());
+            blockOut[b] = new BitSet(function.getNumVariables());
+        }
+
+        Deque<Integer> worklist = new ArrayDeque<>();
+        boolean[] queued = new boolean[numBlocks];
+        for(int b: reverseCFGPostOrder()){
+            worklist.addFirst(b);
+            queued[b] = true;
+        }
+
+        while(!worklist.isEmpty()){
+            int b = worklist.poll();
+            queued[b] = false;
+
+            BitSet out = blockOut[b];
+            for(int k = 0; k < graph.getNumSuccessors(b); ++k)
+                out.or(blockIn[graph.getSuccessor(b, k)]);
+
+            // in = gen | (out & ~kill)
+            BitSet in = (BitSet) out.clone();
+            in.andNot(kill[b]);
+            in.or(gen[b]);
+            if(in.equals(blockIn[b]))
+                continue;
+
+            blockIn[b] = in;
+            for(int k = 0; k < graph.getNumPredecessors(b); ++k){
+                int p = graph.getPredecessor(b, k);
+                if(!queued[p]) {
+                    worklist.add(p);
+                    queued[p] = true;
+                }
+            }
+        }
     }
 
-    private void update(Integer i){
-        outSets.put(i, getOutSet(function.getFollowSet(i)));
-        inSets.put(i, getLiveSet(function.getCommand(i), i));
+    // post order of a depth first walk over predecessor edges, starting from the exit blocks;
+    // blocks that never reach an exit (infinite loops) are walked afterwards
+    private List<Integer> reverseCFGPostOrder(){
+        int numBlocks = graph.getNumBlocks();
+        List<Integer> order = new ArrayList<>(numBlocks);
+        boolean[] visited = new boolean[numBlocks];
+        for(int b = numBlocks - 1; b >= 0; --b)
+            if(graph.getNumSuccessors(b) == 0)
+                postOrder(b, visited, order);
+        for(int b = numBlocks - 1; b >= 0; --b)
+            postOrder(b, visited, order);
+        return order;
     }
 
-    private Set<Variable> getLiveSet(IRCommand i, Integer index){
-        Set<Variable> set = new HashSet<>(outSets.getOrDefault(index, new HashSet<>()));
-        set.removeAll(i.getDecl());
-        set.addAll(i.getUsed());
-        return set;
+    private void postOrder(int root, boolean[] visited, List<Integer> order){
+        if(visited[root])
+            return;
+        // iterative walk so long chains of blocks don't overflow the java stack
+        Deque<int[]> stack = new ArrayDeque<>();
+        visited[root] = true;
+        stack.push(new int[]{root, 0});
+        while(!stack.isEmpty()){
+            int[] top = stack.peek();
+            if(top[1] < graph.getNumPredecessors(top[0])){
+                int p = graph.getPredecessor(top[0], top[1]++);
+                if(!visited[p]){
+                    visited[p] = true;
+                    stack.push(new int[]{p, 0});
+                }
+            } else {
+                order.add(top[0]);
+                stack.pop();
+            }
+        }
     }
 
-    private Set<Variable> getOutSet(Set<Integer> successorCommands){
-        Set<Variable> outSet = new HashSet<>();
-        for(var i: successorCommands) {
-            outSet.addAll(inSets.getOrDefault(i, new HashSet<>()));
+    private void computeBlock(int b){
+        if(inSets[graph.getLastCommand(b)] != null)
+            return;
+        BitSet live = (BitSet) blockOut[b].clone();
+        for(int i = graph.getLastCommand(b); i >= graph.getFirstCommand(b); --i){
+            IRCommand command = function.getCommand(i);
+            outSets[i] = (BitSet) live.clone();
+            live.andNot(toBits(command.getDecl()));
+            live.or(toBits(command.getUsed()));
+            inSets[i] = (BitSet) live.clone();
         }
-        return outSet;
     }
 
     @Override
@@ -63,8 +182,8 @@ public class LiveSet {
         rep.append("Function Start - ").append(function.getFuncName());
         rep.append(":\n");
         for(int i = 0; i < function.getNumCommands(); ++i){
-            rep.append(i).append(":").append("INSET: ").append(inSets.get(i))
-                    .append(" - ").append("OUTSET: ").append(outSets.get(i)).append("\n");
+            rep.append(i).append(":").append("INSET: ").append(getSet(i))
+                    .append(" - ").append("OUTSET: ").append(getOutSet(i)).append("\n");
         }
         return rep.append("Function End - ").append(function.getFuncName()).append("\n\n").toString();
     }
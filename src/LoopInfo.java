@@ -0,0 +1,71 @@
+import java.util.*;
+
+public class LoopInfo {
+    private final BasicBlocks graph;
+    private final DominatorTree dominators;
+
+    // number of natural loops every block belongs to, loops sharing a header count once
+    private final int[] depth;
+    private final boolean[] header;
+    private int numLoops;
+
+    public LoopInfo(BasicBlocks graph) {
+        this(new DominatorTree(graph));
+    }
+
+    public LoopInfo(DominatorTree dominators) {
+        this.graph = dominators.getGraph();
+        this.dominators = dominators;
+        this.depth = new int[graph.getNumBlocks()];
+        this.header = new boolean[graph.getNumBlocks()];
+        init();
+    }
+
+    private void init() {
+        int numBlocks = graph.getNumBlocks();
+        int[] mark = new int[numBlocks];
+        Arrays.fill(mark, -1);
+        Deque<Integer> pending = new ArrayDeque<>();
+
+        for (int h = 0; h < numBlocks; ++h) {
+            // an edge b -> h is a back edge when h dominates b, the loop body is everything reaching b without h
+            for (int k = 0; k < graph.getNumPredecessors(h); ++k) {
+                int b = graph.getPredecessor(h, k);
+                if (!dominators.dominates(h, b))
+                    continue;
+                if (!header[h]) {
+                    header[h] = true;
+                    ++numLoops;
+                    mark[h] = h;
+                    ++depth[h];
+                }
+                pending.push(b);
+            }
+            while (!pending.isEmpty()) {
+                int b = pending.pop();
+                if (mark[b] == h || !dominators.dominates(h, b))
+                    continue;
+                mark[b] = h;
+                ++depth[b];
+                for (int k = 0; k < graph.getNumPredecessors(b); ++k)
+                    pending.push(graph.getPredecessor(b, k));
+            }
+        }
+    }
+
+    public DominatorTree getDominators() {
+        return dominators;
+    }
+
+    public int getLoopDepth(int block) {
+        return depth[block];
+    }
+
+    public boolean isLoopHeader(int block) {
+        return header[block];
+    }
+
+    public int getNumLoops() {
+        return numLoops;
+    }
+}
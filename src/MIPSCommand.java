@@ -4,6 +4,20 @@ import java.util.Map;
 
 public abstract class MIPSCommand {
 
+    // hi, lo and the float condition bit are never allocated, they only tie the instructions writing them
+    // to the ones reading them
+    final static Register HI = new Register("hi", Type.Integer);
+    final static Register LO = new Register("lo", Type.Integer);
+    final static Register CONDITION_BIT = new Register("fcc", Type.Integer);
+
+    // registers the instruction reads and writes, the memory it touches is not included
+    public List<Register> getUses(){
+        return List.of();
+    }
+
+    public List<Register> getDefs(){
+        return List.of();
+    }
 
 }
 
@@ -20,9 +34,114 @@ class BinaryMIPSCommand extends MIPSCommand{
         this.isFloat = isFloat;
     }
 
+    @Override
+    public List<Register> getUses() {
+        return List.of(a, b);
+    }
+
+    // the integer div pseudo instruction divides into hi and lo and copies the quotient from lo, mul
+    // overwrites them on some processors
+    @Override
+    public List<Register> getDefs() {
+        if (!isFloat && (op.equals(BinaryOperator.MUL) || op.equals(BinaryOperator.DIV)))
+            return List.of(dest, HI, LO);
+        return List.of(dest);
+    }
+
+    public BinaryOperator getOp() {
+        return op;
+    }
+
+    public boolean isFloat() {
+        return isFloat;
+    }
+
+    @Override
+    public String toString() {
+        // integer add and sub wrap on overflow like addiu and mul instead of trapping
+        String name = op.toString().toLowerCase();
+        if (!isFloat && (op.equals(BinaryOperator.ADD) || op.equals(BinaryOperator.SUB)))
+            name += "u";
+        return "\t\t" + name + ( isFloat ? ".s " : " ") + dest + ", " + a + ", " + b;
+    }
+}
+
+class ShiftMIPSCommand extends MIPSCommand {
+    private Register dest, a;
+    private int amount;
+    // sll, sra or srl
+    private String op;
+
+    public ShiftMIPSCommand(Register dest, Register a, int amount, String op) {
+        this.dest = dest;
+        this.a = a;
+        this.amount = amount;
+        this.op = op;
+    }
+
+    @Override
+    public List<Register> getUses() {
+        return List.of(a);
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(dest);
+    }
+
     @Override
     public String toString() {
-        return "\t\t" + op.toString().toLowerCase() + ( isFloat ? ".s " : " ") + dest + ", " + a + ", " + b;
+        return "\t\t" + op + " " + dest + ", " + a + ", " + amount;
+    }
+}
+
+// 64 bit signed product of a and b into hi and lo
+class MultiplyMIPSCommand extends MIPSCommand {
+    private Register a, b;
+
+    public MultiplyMIPSCommand(Register a, Register b) {
+        this.a = a;
+        this.b = b;
+    }
+
+    @Override
+    public List<Register> getUses() {
+        return List.of(a, b);
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(HI, LO);
+    }
+
+    @Override
+    public String toString() {
+        return "\t\t" + "mult " + a + ", " + b;
+    }
+}
+
+class MoveFromHiLoCommand extends MIPSCommand {
+    private Register dest;
+    private boolean high;
+
+    public MoveFromHiLoCommand(Register dest, boolean high) {
+        this.dest = dest;
+        this.high = high;
+    }
+
+    @Override
+    public List<Register> getUses() {
+        return List.of(high ? HI : LO);
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(dest);
+    }
+
+    @Override
+    public String toString() {
+        return "\t\t" + (high ? "mfhi " : "mflo ") + dest;
     }
 }
 
@@ -38,9 +157,64 @@ class BinaryImmediateMIPSCommand extends MIPSCommand{
         this.op = op;
     }
 
+    @Override
+    public List<Register> getUses() {
+        return List.of(a);
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(dest);
+    }
+
+    public Constant getConstant() {
+        return b;
+    }
+
+    public BinaryOperator getOp() {
+        return op;
+    }
+
+    @Override
+    public String toString() {
+        // addiu doesn't trap on overflow like add, the logic ops only come as andi and ori
+        String name = op.equals(BinaryOperator.ADD) ? "addiu" : op.toString().toLowerCase() + "i";
+        return "\t\t" + name + " " + dest + ", " + a + ", " + b;
+    }
+}
+
+// dest = 1 when a is less than b and 0 otherwise, b is a register or a 16 bit immediate
+class SetLessThanMIPSCommand extends MIPSCommand {
+    private Register dest, a;
+    private Argument b;
+    private boolean unsigned;
+
+    public SetLessThanMIPSCommand(Register dest, Register a, Argument b, boolean unsigned) {
+        this.dest = dest;
+        this.a = a;
+        this.b = b;
+        this.unsigned = unsigned;
+    }
+
+    public Argument getB() {
+        return b;
+    }
+
+    @Override
+    public List<Register> getUses() {
+        if(b instanceof Register)
+            return List.of(a, (Register) b);
+        return List.of(a);
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(dest);
+    }
+
     @Override
     public String toString() {
-        return "\t\t" +  op.toString().toLowerCase() + "iu" + " " + dest + ", " + a + ", " + b;
+        return "\t\t" + "slt" + (b instanceof Register ? "" : "i") + (unsigned ? "u " : " ") + dest + ", " + a + ", " + b;
     }
 }
 
@@ -55,6 +229,30 @@ class LoadMIPSCommand extends MIPSCommand {
         this.isFloat = isFloat;
     }
 
+    public Register getDest() {
+        return dest;
+    }
+
+    public Variable getOrigin() {
+        return origin;
+    }
+
+    public boolean isFloat() {
+        return isFloat;
+    }
+
+    @Override
+    public List<Register> getUses() {
+        if(origin instanceof Address)
+            return List.of(((Address) origin).getStart());
+        return List.of();
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(dest);
+    }
+
     @Override
     public String toString() {
         return "\t\t" +  "l" + (isFloat ? ".s" : "w") + " " + dest + ", " + origin;
@@ -72,14 +270,35 @@ class StoreMIPSCommand extends MIPSCommand {
         this.isFloat = isFloat;
     }
 
+    public Register getOrigin() {
+        return origin;
+    }
+
+    public Register getDest() {
+        return dest;
+    }
+
+    public boolean isFloat() {
+        return isFloat;
+    }
+
+    @Override
+    public List<Register> getUses() {
+        if(dest instanceof Address)
+            return List.of(origin, ((Address) dest).getStart());
+        return List.of(origin);
+    }
+
     @Override
     public String toString() {
         return "\t\t" +  "s" + (isFloat ? ".s" : "w") + " " + origin + ", " + dest;
     }
 }
 class BranchMIPSCommand extends MIPSCommand {
-    private Register a, b;
-    private String label, op;
+    private Register a;
+    // a register, or an immediate the assembler expands the pseudo branch with
+    private Argument b;
+    private String label, op, condition;
     private final static Map<String, String> INT_MAP = new HashMap<>();
     static{
         INT_MAP.put("brneq", "bne");
@@ -90,13 +309,40 @@ class BranchMIPSCommand extends MIPSCommand {
         INT_MAP.put("brleq", "ble");
     }
 
-    public BranchMIPSCommand(Register a, Register b, String label, String op) {
+    // the branch taken exactly when the original one falls through
+    final static Map<String, String> INVERSE_CONDITIONS = new HashMap<>();
+    static{
+        INVERSE_CONDITIONS.put("brneq", "breq");
+        INVERSE_CONDITIONS.put("breq", "brneq");
+        INVERSE_CONDITIONS.put("brgt", "brleq");
+        INVERSE_CONDITIONS.put("brleq", "brgt");
+        INVERSE_CONDITIONS.put("brgeq", "brlt");
+        INVERSE_CONDITIONS.put("brlt", "brgeq");
+    }
+
+    public BranchMIPSCommand(Register a, Argument b, String label, String op) {
         this.a = a;
         this.b = b;
         this.label = label;
+        this.condition = op;
         this.op = INT_MAP.get(op);
     }
 
+    public String getLabel() {
+        return label;
+    }
+
+    public BranchMIPSCommand invert(String label) {
+        return new BranchMIPSCommand(a, b, label, INVERSE_CONDITIONS.get(condition));
+    }
+
+    @Override
+    public List<Register> getUses() {
+        if(b instanceof Register)
+            return List.of(a, (Register) b);
+        return List.of(a);
+    }
+
     @Override
     public String toString() {
         return op + " " + a + ", " + b + ", " + label;
@@ -107,9 +353,10 @@ class BranchMIPSCommand extends MIPSCommand {
 class FloatBranchMIPSCommand extends MIPSCommand{
     private Register a, b;
     private List<String> ops;
-    private String label;
+    private String label, condition;
 
-    private final static Map<String, List<String>> STRING_MAP = new HashMap<>();
+    // the compare setting the condition bit and the branch on it for every IR branch
+    final static Map<String, List<String>> STRING_MAP = new HashMap<>();
     static{
         STRING_MAP.put("brneq", List.of("c.eq.s", "bc1f"));
         STRING_MAP.put("breq", List.of("c.eq.s", "bc1t"));
@@ -123,8 +370,28 @@ class FloatBranchMIPSCommand extends MIPSCommand{
         this.a = a;
         this.b = b;
         this.label = label;
+        this.condition = op;
         this.ops = STRING_MAP.get(op);
     }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public FloatBranchMIPSCommand invert(String label) {
+        return new FloatBranchMIPSCommand(a, b, label, BranchMIPSCommand.INVERSE_CONDITIONS.get(condition));
+    }
+
+    @Override
+    public List<Register> getUses() {
+        return List.of(a, b);
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(CONDITION_BIT);
+    }
+
     @Override
     public String toString() {
         return ops.get(0) + " " + a + ", " + b + "\n" + ops.get(1) + " " + label;
@@ -132,6 +399,72 @@ class FloatBranchMIPSCommand extends MIPSCommand{
 
 }
 
+// sets the float condition bit the way the compare of a FloatBranchMIPSCommand does, the condition
+// holds when the bit is set exactly if that branch is a bc1t
+class FloatCompareMIPSCommand extends MIPSCommand {
+    private Register a, b;
+    private String condition;
+
+    public FloatCompareMIPSCommand(Register a, Register b, String condition) {
+        this.a = a;
+        this.b = b;
+        this.condition = condition;
+    }
+
+    public boolean holdsWhenSet() {
+        return FloatBranchMIPSCommand.STRING_MAP.get(condition).get(1).equals("bc1t");
+    }
+
+    @Override
+    public List<Register> getUses() {
+        return List.of(a, b);
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(CONDITION_BIT);
+    }
+
+    @Override
+    public String toString() {
+        return "\t\t" + FloatBranchMIPSCommand.STRING_MAP.get(condition).get(0) + " " + a + ", " + b;
+    }
+}
+
+// movn/movz copy source to dest when flag is non zero/zero, without a flag movt/movf test the float
+// condition bit instead, dest keeps its value otherwise so it is read as well
+class ConditionalMoveMIPSCommand extends MIPSCommand {
+    private Register dest, source, flag;
+    private boolean whenSet;
+    private boolean isFloat;
+
+    public ConditionalMoveMIPSCommand(Register dest, Register source, Register flag, boolean whenSet, boolean isFloat) {
+        this.dest = dest;
+        this.source = source;
+        this.flag = flag;
+        this.whenSet = whenSet;
+        this.isFloat = isFloat;
+    }
+
+    @Override
+    public List<Register> getUses() {
+        if(flag == null)
+            return List.of(source, dest, CONDITION_BIT);
+        return List.of(source, flag, dest);
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(dest);
+    }
+
+    @Override
+    public String toString() {
+        String name = flag == null ? (whenSet ? "movt" : "movf") : (whenSet ? "movn" : "movz");
+        return "\t\t" + name + (isFloat ? ".s " : " ") + dest + ", " + source + (flag == null ? "" : ", " + flag);
+    }
+}
+
 class JumpMIPSCommand extends MIPSCommand {
     private String label;
 
@@ -139,12 +472,31 @@ class JumpMIPSCommand extends MIPSCommand {
         this.label = label;
     }
 
+    public String getLabel() {
+        return label;
+    }
+
     @Override
     public String toString() {
         return "\t\t" +  "j " + label;
     }
 }
 
+// jump to another function that returns in place of this one, the arguments already in their registers
+class TailCallMIPSCommand extends JumpMIPSCommand {
+    private List<Register> arguments;
+
+    public TailCallMIPSCommand(String label, List<Register> arguments) {
+        super(label);
+        this.arguments = arguments;
+    }
+
+    @Override
+    public List<Register> getUses() {
+        return arguments;
+    }
+}
+
 class ReturnMIPSCommand extends MIPSCommand {
     private Register addr;
 
@@ -156,6 +508,11 @@ class ReturnMIPSCommand extends MIPSCommand {
         this.addr = addr;
     }
 
+    @Override
+    public List<Register> getUses() {
+        return List.of(addr);
+    }
+
     @Override
     public String toString() {
         return "\t\t" +  "jr " + addr;
@@ -169,6 +526,11 @@ class CallMIPSCommand extends MIPSCommand {
         this.label = label;
     }
 
+    @Override
+    public List<Register> getDefs() {
+        return List.of(new Register("ra", Type.Integer));
+    }
+
     @Override
     public String toString() {
         return "\t\t" +  "jal " + label;
@@ -184,6 +546,15 @@ class LoadIntCommand extends MIPSCommand {
         this.constant = constant;
     }
 
+    @Override
+    public List<Register> getDefs() {
+        return List.of(dest);
+    }
+
+    public Constant getConstant() {
+        return constant;
+    }
+
     @Override
     public String toString() {
         return "\t\t" +  "li " + dest + ", " + constant;
@@ -199,6 +570,11 @@ class LoadFloatCommand extends MIPSCommand {
         this.constant = constant;
     }
 
+    @Override
+    public List<Register> getDefs() {
+        return List.of(dest);
+    }
+
     @Override
     public String toString() {
         return "\t\t" +  "li.s " + dest + ", " + constant;
@@ -214,6 +590,19 @@ class LoadLabelAddressCommand extends MIPSCommand {
         this.label = label;
     }
 
+    public Register getDest() {
+        return dest;
+    }
+
+    public DataAddress getLabel() {
+        return label;
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(dest);
+    }
+
     @Override
     public String toString() {
         return "\t\t" +  "la " + dest + ", " + label;
@@ -230,6 +619,24 @@ class MoveMIPSCommand extends MIPSCommand {
         this.isFloat = isFloat;
     }
 
+    public Register getDest() {
+        return a;
+    }
+
+    public Register getSource() {
+        return b;
+    }
+
+    @Override
+    public List<Register> getUses() {
+        return List.of(b);
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(a);
+    }
+
     @Override
     public String toString() {
         return "\t\t" +  "mov" +  (isFloat ? ".s ": "e ") + a + ", " + b;
@@ -244,6 +651,10 @@ class LabelMIPSCommand extends MIPSCommand {
         this.label = label;
     }
 
+    public String getLabel() {
+        return label;
+    }
+
     @Override
     public String toString() {
         return "\t\t" +  label + ":";
@@ -258,6 +669,16 @@ class IntToFloatCommand extends MIPSCommand {
         this.floatRegister = floatRegister;
     }
 
+    @Override
+    public List<Register> getUses() {
+        return List.of(intRegister);
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(floatRegister);
+    }
+
     @Override
     public String toString() {
         return new MoveToFloatCommand(intRegister, floatRegister) + "\n" + "\t\t" +  "cvt.s.w " + floatRegister + ", " + floatRegister;
@@ -272,6 +693,17 @@ class FloatToIntCommand extends MIPSCommand {
         this.floatRegister = floatRegister;
     }
 
+    // the conversion happens in place, so the float register is overwritten as well
+    @Override
+    public List<Register> getUses() {
+        return List.of(floatRegister);
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(intRegister, floatRegister);
+    }
+
     @Override
     public String toString() {
         return "\t\t" +  "cvt.w.s " + floatRegister + ", " + floatRegister + "\n" + new MoveFromFloatCommand(intRegister, floatRegister);
@@ -286,6 +718,16 @@ class MoveToFloatCommand extends MIPSCommand {
         this.floatRegister = floatRegister;
     }
 
+    @Override
+    public List<Register> getUses() {
+        return List.of(intRegister);
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(floatRegister);
+    }
+
     @Override
     public String toString() {
         return "\t\t" +  "mtc1 " + intRegister + ", " + floatRegister;
@@ -300,6 +742,16 @@ class MoveFromFloatCommand extends MIPSCommand {
         this.floatRegister = floatRegister;
     }
 
+    @Override
+    public List<Register> getUses() {
+        return List.of(floatRegister);
+    }
+
+    @Override
+    public List<Register> getDefs() {
+        return List.of(intRegister);
+    }
+
     @Override
     public String toString() {
         return "\t\t" +  "mfc1 " + intRegister + ", " + floatRegister;
@@ -349,6 +801,10 @@ class AssemblerDirectiveCommand extends MIPSCommand {
         this(directive, List.of());
     }
 
+    public String getDirective() {
+        return directive;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -361,6 +817,14 @@ class AssemblerDirectiveCommand extends MIPSCommand {
 
 }
 
+// fills a delay slot nothing else could go into
+class NopMIPSCommand extends MIPSCommand {
+    @Override
+    public String toString() {
+        return "\t\t" + "nop";
+    }
+}
+
 class SystemMIPSCommand extends  MIPSCommand {
     @Override
     public String toString() {
@@ -20,7 +20,17 @@ public class Main {
         writer.flush();
     }
 
-    public static void compile(File file, File tiger_file, boolean graphViz, boolean liveness, boolean naive, boolean cfg, boolean briggs) throws IOException {
+    private static void emit(Class c, RegisterAllocator allocator, String path, Statistics statistics, boolean peephole, boolean instrument, boolean schedule, boolean fillDelaySlots) throws IOException {
+        Translator translator = new Translator(allocator, instrument);
+        List<MIPSCommand> commandList = translator.translate(c);
+        if(peephole)
+            commandList = new PeepholeOptimizer(c, statistics).optimize(commandList);
+        if(schedule)
+            commandList = new InstructionScheduler(c, statistics, fillDelaySlots).schedule(commandList);
+        toFile(path, commandList);
+    }
+
+    public static void compile(File file, File tiger_file, boolean graphViz, boolean liveness, boolean stats, boolean naive, boolean cfg, boolean briggs, boolean linearScan, boolean ssa, boolean peephole, boolean booleans, boolean ifConversion, boolean inline, int inlineGrowth, boolean layout, boolean instrument, String profilePath, boolean schedule, boolean fillDelaySlots) throws IOException {
         CharStream codePointCharStream = CharStreams.fromPath(Path.of(file.getAbsolutePath()));
         IRLexer lexer = new IRLexer(codePointCharStream);
         IRParser parser = new IRParser(new CommonTokenStream(lexer));
@@ -32,22 +42,37 @@ public class Main {
         String fileName = tiger_file.getName();
         fileName = fileName.substring(0, fileName.lastIndexOf("tiger"));
         File folder = tiger_file.getParentFile();
+        Statistics statistics = new Statistics();
+        Profile profile = profilePath == null ? null : Profile.load(profilePath);
+        if(booleans)
+            new BooleanLowering(c, statistics).lower();
+        if(ifConversion)
+            new IfConversion(c, statistics).convert();
+        if(inline)
+            new Inliner(c, statistics, inlineGrowth, profile).inline();
+        if(layout)
+            new BlockLayout(c, statistics, profile).layout();
 
         if(cfg) {
             CFGAllocator allocator = new CFGAllocator();
-            Translator translator = new Translator(allocator);
-            toFile(Path.of(folder.getAbsolutePath(), fileName + "s").toString(), translator.translate(c));
+            emit(c, allocator, Path.of(folder.getAbsolutePath(), fileName + "s").toString(), statistics, peephole, instrument, schedule, fillDelaySlots);
         }
-        if(naive || !(cfg || briggs)) {
+        if(naive || !(cfg || briggs || linearScan || ssa)) {
             NaiveAllocator allocator = new NaiveAllocator();
-            Translator translator = new Translator(allocator);
-            toFile(Path.of(folder.getAbsolutePath(), fileName + "s").toString(), translator.translate(c));
+            emit(c, allocator, Path.of(folder.getAbsolutePath(), fileName + "s").toString(), statistics, peephole, instrument, schedule, fillDelaySlots);
         }
         LivenessAnalysis livenessAnalysis = new LivenessAnalysis(c);
         if(briggs) {
-            BriggsAllocator allocator = new BriggsAllocator(livenessAnalysis);
-            Translator translator = new Translator(allocator);
-            toFile(Path.of(folder.getAbsolutePath(), fileName + "s").toString(), translator.translate(c));
+            BriggsAllocator allocator = new BriggsAllocator(livenessAnalysis, statistics, profile);
+            emit(c, allocator, Path.of(folder.getAbsolutePath(), fileName + "s").toString(), statistics, peephole, instrument, schedule, fillDelaySlots);
+        }
+        if(linearScan) {
+            LinearScanAllocator allocator = new LinearScanAllocator(livenessAnalysis, statistics);
+            emit(c, allocator, Path.of(folder.getAbsolutePath(), fileName + "s").toString(), statistics, peephole, instrument, schedule, fillDelaySlots);
+        }
+        if(ssa) {
+            SSAAllocator allocator = new SSAAllocator(livenessAnalysis, statistics, profile);
+            emit(c, allocator, Path.of(folder.getAbsolutePath(), fileName + "s").toString(), statistics, peephole, instrument, schedule, fillDelaySlots);
         }
 
 
@@ -63,13 +88,21 @@ public class Main {
             livenessAnalysis.toFile(Path.of(folder.getAbsolutePath(), fileName + "liveness").toString());
         }
 
+        if(stats){
+            statistics.toFile(Path.of(folder.getAbsolutePath(), fileName + "stats").toString());
+        }
+
     }
 
 
     public static void main(String[] args) throws IOException {
         String ir_source = null, tiger_source = null;
-        boolean naive = false, briggs = false, cfg = false;
-        boolean graphViz = false, liveness = false;
+        boolean naive = false, briggs = false, cfg = false, linearScan = false, ssa = false;
+        boolean graphViz = false, liveness = false, stats = false, peephole = false, booleans = false, ifConversion = false, inline = false, layout = false;
+        boolean instrument = false, schedule = false, fillDelaySlots = false;
+        String profilePath = null;
+        // percentage the inliner may grow the program by
+        int inlineGrowth = 50;
         for(int i = 0; i < args.length; ++i){
             if(args[i].equals("-r")){
                 ir_source = args[i + 1];
@@ -83,6 +116,9 @@ public class Main {
             if(args[i].equals("--liveness")){
                 liveness = true;
             }
+            if(args[i].equals("--stats")){
+                stats = true;
+            }
             if(args[i].equals("-n")){
                 naive = true;
             }
@@ -92,10 +128,54 @@ public class Main {
             if(args[i].equals("-g")){
                 briggs = true;
             }
+            if(args[i].equals("-l")){
+                linearScan = true;
+            }
+            if(args[i].equals("-s")){
+                ssa = true;
+            }
+            if(args[i].equals("--peephole")){
+                peephole = true;
+            }
+            if(args[i].equals("--booleans")){
+                booleans = true;
+            }
+            if(args[i].equals("--if-convert")){
+                ifConversion = true;
+            }
+            if(args[i].equals("--inline")){
+                inline = true;
+            }
+            if(args[i].equals("--inline-growth")){
+                inline = true;
+                inlineGrowth = Integer.parseInt(args[i + 1]);
+            }
+            if(args[i].equals("--layout")){
+                layout = true;
+            }
+            if(args[i].equals("--instrument")){
+                instrument = true;
+            }
+            if(args[i].equals("--profile-use")){
+                profilePath = args[i + 1];
+            }
+            if(args[i].equals("--schedule")){
+                schedule = true;
+            }
+            // delay slots are filled from the scheduled regions
+            if(args[i].equals("--fill-delay-slots")){
+                schedule = true;
+                fillDelaySlots = true;
+            }
+        }
+        // counts are keyed by the blocks as written, before inlining and layout rename them
+        if(instrument){
+            inline = false;
+            layout = false;
         }
         if (ir_source == null){
             // TODO ERROR
         }
-        compile(new File(ir_source), new File(tiger_source) , graphViz, liveness, naive, cfg, briggs);
+        compile(new File(ir_source), new File(tiger_source) , graphViz, liveness, stats, naive, cfg, briggs, linearScan, ssa, peephole, booleans, ifConversion, inline, inlineGrowth, layout, instrument, profilePath, schedule, fillDelaySlots);
     }
 }
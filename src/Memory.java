@@ -60,6 +60,12 @@ class RegisterMemory implements Memory {
         freeRegister(register);
     }
 
+    // forgets a pair made by declarePair, the register was never taken from the free list
+    public void deletePair(Variable var){
+        if(stored.remove(var) != null)
+            varStored.remove(var.getName());
+    }
+
     public Integer getNumFree(){
         return freeRegisters.size();
     }
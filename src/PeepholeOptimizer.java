@@ -0,0 +1,258 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+public class PeepholeOptimizer {
+    // how many instructions past the current one a rule looks at, comments are not counted
+    private final static int WINDOW = 8;
+
+    private final Set<String> functionNames;
+    private final Statistics statistics;
+    private String funcName;
+
+    public PeepholeOptimizer(Class c, Statistics statistics) {
+        this.functionNames = c.getFunctions().keySet();
+        this.statistics = statistics;
+    }
+
+    // rules replace or null out entries of the list, the removed ones are dropped after every pass
+    // and passes repeat until nothing changes since one rule can expose another
+    public List<MIPSCommand> optimize(List<MIPSCommand> commandList) {
+        List<MIPSCommand> commands = new ArrayList<>(commandList);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            funcName = null;
+            for (int i = 0; i < commands.size(); ++i) {
+                MIPSCommand command = commands.get(i);
+                if (command instanceof LabelMIPSCommand && functionNames.contains(((LabelMIPSCommand) command).getLabel()))
+                    funcName = ((LabelMIPSCommand) command).getLabel();
+                if (command instanceof MoveMIPSCommand)
+                    changed |= removeMove(commands, i);
+                else if (command instanceof StoreMIPSCommand)
+                    changed |= forwardStore(commands, i);
+                else if (command instanceof LoadMIPSCommand)
+                    changed |= removeStoreAfterLoad(commands, i);
+                else if (command instanceof LoadLabelAddressCommand)
+                    changed |= removeDuplicateLoadAddress(commands, i);
+                else if (command instanceof JumpMIPSCommand)
+                    changed |= removeJumpToNext(commands, i, ((JumpMIPSCommand) command).getLabel());
+                else if (command instanceof BranchMIPSCommand || command instanceof FloatBranchMIPSCommand)
+                    changed |= removeJumpToNext(commands, i, getBranchLabel(command)) || invertBranchOverJump(commands, i);
+            }
+            commands.removeIf(Objects::isNull);
+        }
+        return commands;
+    }
+
+    private void count(String counter) {
+        if (funcName != null)
+            statistics.add(funcName, counter, 1);
+    }
+
+    // instructions control can enter or leave through, or whose register and memory effects aren't modelled
+    static boolean isBarrier(MIPSCommand command) {
+        return command instanceof LabelMIPSCommand || command instanceof JumpMIPSCommand
+                || command instanceof BranchMIPSCommand || command instanceof FloatBranchMIPSCommand
+                || command instanceof ReturnMIPSCommand || command instanceof CallMIPSCommand
+                || command instanceof SystemMIPSCommand || command instanceof AssemblerDirectiveCommand
+                || command instanceof DataTypeMIPSCommand;
+    }
+
+    private static boolean isSkipped(MIPSCommand command) {
+        return command == null || command instanceof CommentMIPSCommand;
+    }
+
+    // first instruction after index i, or the size of the list
+    private static int next(List<MIPSCommand> commands, int i) {
+        int j = i + 1;
+        while (j < commands.size() && isSkipped(commands.get(j)))
+            ++j;
+        return j;
+    }
+
+    // registers are compared by name, the same register is sometimes created with different types
+    static boolean same(Register a, Register b) {
+        return a.getName().equals(b.getName());
+    }
+
+    static boolean mentions(List<Register> registers, Register r) {
+        for (Register register : registers)
+            if (same(register, r))
+                return true;
+        return false;
+    }
+
+    // stack slots are word aligned, so two addresses off the same base only overlap when their offsets are
+    // closer than a word, and globals never overlap the stack or each other
+    static boolean mayAlias(Register a, Register b) {
+        if (a instanceof DataAddress && b instanceof DataAddress)
+            return a.getName().equals(b.getName());
+        if (a instanceof DataAddress)
+            return !isStackAddress(b);
+        if (b instanceof DataAddress)
+            return !isStackAddress(a);
+        if (a instanceof Address && b instanceof Address && same(a, b))
+            return Math.abs(((Address) a).getOffset() - ((Address) b).getOffset()) < 4;
+        return true;
+    }
+
+    private static boolean isStackAddress(Register address) {
+        return address instanceof Address && (address.getName().equals("sp") || address.getName().equals("fp"));
+    }
+
+    private static Register getBase(Variable address) {
+        return address instanceof Address ? ((Address) address).getStart() : null;
+    }
+
+    // move r, r is removed, and so is move r, x when r is written again before it is read
+    private boolean removeMove(List<MIPSCommand> commands, int i) {
+        MoveMIPSCommand move = (MoveMIPSCommand) commands.get(i);
+        if (same(move.getDest(), move.getSource())) {
+            commands.set(i, null);
+            count("self moves removed");
+            return true;
+        }
+        int j = i;
+        for (int k = 0; k < WINDOW; ++k) {
+            j = next(commands, j);
+            if (j == commands.size() || isBarrier(commands.get(j)) || mentions(commands.get(j).getUses(), move.getDest()))
+                return false;
+            if (mentions(commands.get(j).getDefs(), move.getDest())) {
+                commands.set(i, null);
+                count("dead moves removed");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // a load from the slot just stored to becomes nothing when it reads into the stored register,
+    // and a move from it otherwise
+    private boolean forwardStore(List<MIPSCommand> commands, int i) {
+        StoreMIPSCommand store = (StoreMIPSCommand) commands.get(i);
+        Register value = store.getOrigin(), address = store.getDest(), base = getBase(address);
+        boolean changed = false;
+        int j = i;
+        for (int k = 0; k < WINDOW; ++k) {
+            j = next(commands, j);
+            if (j == commands.size() || isBarrier(commands.get(j)))
+                break;
+            MIPSCommand command = commands.get(j);
+            if (command instanceof LoadMIPSCommand) {
+                LoadMIPSCommand load = (LoadMIPSCommand) command;
+                if (load.isFloat() == store.isFloat() && load.getOrigin().toString().equals(address.toString())) {
+                    if (same(load.getDest(), value)) {
+                        commands.set(j, null);
+                        count("redundant loads removed");
+                    } else {
+                        commands.set(j, new MoveMIPSCommand(load.getDest(), value, store.isFloat()));
+                        count("loads forwarded to moves");
+                    }
+                    changed = true;
+                    command = commands.get(j);
+                    if (command == null)
+                        continue;
+                }
+            }
+            if (command instanceof StoreMIPSCommand && mayAlias(((StoreMIPSCommand) command).getDest(), address))
+                break;
+            if (mentions(command.getDefs(), value) || (base != null && mentions(command.getDefs(), base)))
+                break;
+        }
+        return changed;
+    }
+
+    // storing a register back to the slot it was just loaded from leaves memory as it was
+    private boolean removeStoreAfterLoad(List<MIPSCommand> commands, int i) {
+        LoadMIPSCommand load = (LoadMIPSCommand) commands.get(i);
+        Register value = load.getDest(), base = getBase(load.getOrigin());
+        if (!(load.getOrigin() instanceof Register) || (base != null && same(base, value)))
+            return false;
+        int j = i;
+        for (int k = 0; k < WINDOW; ++k) {
+            j = next(commands, j);
+            if (j == commands.size() || isBarrier(commands.get(j)))
+                return false;
+            MIPSCommand command = commands.get(j);
+            if (command instanceof StoreMIPSCommand) {
+                StoreMIPSCommand store = (StoreMIPSCommand) command;
+                if (store.isFloat() == load.isFloat() && same(store.getOrigin(), value)
+                        && store.getDest().toString().equals(load.getOrigin().toString())) {
+                    commands.set(j, null);
+                    count("redundant stores removed");
+                    return true;
+                }
+                if (mayAlias(store.getDest(), (Register) load.getOrigin()))
+                    return false;
+            }
+            if (mentions(command.getDefs(), value) || (base != null && mentions(command.getDefs(), base)))
+                return false;
+        }
+        return false;
+    }
+
+    private boolean removeDuplicateLoadAddress(List<MIPSCommand> commands, int i) {
+        LoadLabelAddressCommand la = (LoadLabelAddressCommand) commands.get(i);
+        int j = i;
+        for (int k = 0; k < WINDOW; ++k) {
+            j = next(commands, j);
+            if (j == commands.size() || isBarrier(commands.get(j)))
+                return false;
+            MIPSCommand command = commands.get(j);
+            if (command instanceof LoadLabelAddressCommand && same(((LoadLabelAddressCommand) command).getDest(), la.getDest())
+                    && ((LoadLabelAddressCommand) command).getLabel().getName().equals(la.getLabel().getName())) {
+                commands.set(j, null);
+                count("duplicate la removed");
+                return true;
+            }
+            if (mentions(command.getDefs(), la.getDest()))
+                return false;
+        }
+        return false;
+    }
+
+    // true when only comments and labels separate index i from the definition of label
+    private static boolean fallsInto(List<MIPSCommand> commands, int i, String label) {
+        for (int j = next(commands, i); j < commands.size(); j = next(commands, j)) {
+            if (!(commands.get(j) instanceof LabelMIPSCommand))
+                return false;
+            if (((LabelMIPSCommand) commands.get(j)).getLabel().equals(label))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean removeJumpToNext(List<MIPSCommand> commands, int i, String label) {
+        if (!fallsInto(commands, i, label))
+            return false;
+        commands.set(i, null);
+        count("jumps to next removed");
+        return true;
+    }
+
+    private static String getBranchLabel(MIPSCommand branch) {
+        if (branch instanceof BranchMIPSCommand)
+            return ((BranchMIPSCommand) branch).getLabel();
+        return ((FloatBranchMIPSCommand) branch).getLabel();
+    }
+
+    // branch L1; j L2; L1: becomes the inverted branch to L2 falling into L1
+    private boolean invertBranchOverJump(List<MIPSCommand> commands, int i) {
+        int j = next(commands, i);
+        if (j == commands.size() || !(commands.get(j) instanceof JumpMIPSCommand))
+            return false;
+        MIPSCommand branch = commands.get(i);
+        if (!fallsInto(commands, j, getBranchLabel(branch)))
+            return false;
+        String target = ((JumpMIPSCommand) commands.get(j)).getLabel();
+        if (branch instanceof BranchMIPSCommand)
+            commands.set(i, ((BranchMIPSCommand) branch).invert(target));
+        else
+            commands.set(i, ((FloatBranchMIPSCommand) branch).invert(target));
+        commands.set(j, null);
+        count("branches over jumps removed");
+        return true;
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+public class Profile {
+    // lines an instrumented program prints at exit start with this, anything else it printed is skipped
+    final static String PREFIX = "profile";
+
+    // execution count of every block by function name and block id
+    private final Map<String, Map<String, Double>> counts;
+
+    public Profile() {
+        this.counts = new HashMap<>();
+    }
+
+    // counts of several runs, appended to the same file, add up
+    public static Profile load(String path) throws IOException {
+        Profile profile = new Profile();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length != 4 || !fields[0].equals(PREFIX))
+                    continue;
+                profile.counts.computeIfAbsent(fields[1], k -> new HashMap<>())
+                        .merge(fields[2], Double.parseDouble(fields[3]), Double::sum);
+            }
+        }
+        return profile;
+    }
+
+    // a block is named by its first label, one without a label by the last label before it and how many
+    // blocks after that label it comes, so the ids only change with the labels around the block
+    public static String[] getBlockIds(Function f) {
+        BasicBlocks graph = f.getControlFlowGraph();
+        String[] ids = new String[graph.getNumBlocks()];
+        String label = f.getFuncName();
+        int k = 0;
+        for (int b = 0; b < graph.getNumBlocks(); ++b) {
+            if (f.getCommand(graph.getFirstCommand(b)) instanceof LabelCommand first) {
+                label = first.getLabel();
+                k = 0;
+                ids[b] = label;
+            } else {
+                ids[b] = label + "+" + ++k;
+            }
+        }
+        return ids;
+    }
+
+    public boolean hasCounts(Function f) {
+        return counts.containsKey(f.getFuncName());
+    }
+
+    // execution counts of the blocks of f, null when the profile never saw f. Blocks it doesn't know, like
+    // the ones a later pass split off, take the count of the block before them
+    public double[] getCounts(Function f) {
+        Map<String, Double> known = counts.get(f.getFuncName());
+        if (known == null)
+            return null;
+        String[] ids = getBlockIds(f);
+        double[] frequencies = new double[ids.length];
+        for (int b = 0; b < ids.length; ++b)
+            frequencies[b] = known.getOrDefault(ids[b], b == 0 ? 0 : frequencies[b - 1]);
+        return frequencies;
+    }
+
+    // passes rebuilding a profiled function hand in the count of every new block, ordered by block id
+    public void setCounts(Function f, double[] frequencies) {
+        Map<String, Double> known = new HashMap<>();
+        String[] ids = getBlockIds(f);
+        for (int b = 0; b < ids.length; ++b)
+            known.put(ids[b], frequencies[b]);
+        counts.put(f.getFuncName(), known);
+    }
+
+    // counts of the blocks commands rebuilt into f came from, one per command in the order they were added
+    public void setCounts(Function f, List<Double> commandCounts) {
+        BasicBlocks graph = f.getControlFlowGraph();
+        double[] frequencies = new double[graph.getNumBlocks()];
+        for (int b = 0; b < graph.getNumBlocks(); ++b)
+            frequencies[b] = commandCounts.get(graph.getFirstCommand(b));
+        setCounts(f, frequencies);
+    }
+}
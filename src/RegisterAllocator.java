@@ -10,19 +10,37 @@ public abstract class RegisterAllocator {
     public final static List<Register> floatSavedRegisters = List.of("f20", "f22", "f24", "f26", "f28", "f30")
             .stream().map(s -> new Register(s, Type.Float)).collect(Collectors.toList());
 
+    // caller saved registers neither the translator's scratch pool nor the intrinsics touch, they only hold
+    // variables that aren't live across a call
+    public final static List<Register> intCallerSavedRegisters = List.of("t6", "t7", "t8", "t9", "v1")
+            .stream().map(s -> new Register(s, Type.Integer)).collect(Collectors.toList());
+
+    public final static List<Register> floatCallerSavedRegisters = List.of("f2", "f16", "f18")
+            .stream().map(s -> new Register(s, Type.Float)).collect(Collectors.toList());
+
     protected RegisterMemory savedIntRegisterMemory;
     protected RegisterMemory savedFloatRegisterMemory;
     protected Function func;
+    protected CallGraph callGraph;
 
     public RegisterAllocator(){
     }
 
+    public void setCallGraph(CallGraph callGraph) {
+        this.callGraph = callGraph;
+    }
+
     public void reset(Function func){
         this.savedIntRegisterMemory = new RegisterMemory(intSavedRegisters);
         this.savedFloatRegisterMemory = new RegisterMemory(floatSavedRegisters);
         this.func = func;
     }
 
+    // function the translator emits, allocators that rewrite the commands first hand back their copy
+    public Function prepare(Function func){
+        return func;
+    }
+
     public Function getFunc() {
         return func;
     }
@@ -67,6 +85,21 @@ public abstract class RegisterAllocator {
             savedIntRegisterMemory.deleteVariable(var);
     }
 
+    // binds a variable to a register the allocator picked itself, outside of the free list
+    protected void declarePair(Variable var, Register reg){
+        if(reg.getType().equals(Type.Float))
+            savedFloatRegisterMemory.declarePair(var, reg);
+        else
+            savedIntRegisterMemory.declarePair(var, reg);
+    }
+
+    protected void deletePair(Variable var){
+        if(var.getType().equals(Type.Float))
+            savedFloatRegisterMemory.deletePair(var);
+        else
+            savedIntRegisterMemory.deletePair(var);
+    }
+
     public Register getRegister(Variable var){
         Register reg;
         if(var.getType().equals(Type.Float)) {
@@ -84,6 +117,77 @@ public abstract class RegisterAllocator {
         return getRegister(var) != null;
     }
 
+    // most globals and stack passed arguments of the given type a single command works with. A call only
+    // counts its destination, which enterCommand gives a register before any argument, the arguments take
+    // what is left and the translator loads the ones that don't fit itself
+    protected int getNumScratch(Type type){
+        int needed = 0;
+        for(int i = 1; i < func.getNumCommands(); ++i){
+            IRCommand command = func.getCommand(i);
+            Set<Variable> vars = new HashSet<>(command.getDecl());
+            if(!(command instanceof CallCommand))
+                vars.addAll(command.getUsed());
+            int count = 0;
+            for(Variable var: vars)
+                if(var.getType().equals(type) && !func.isLocalVariable(var) && func.getRegister(var) == null)
+                    ++count;
+            needed = Math.max(needed, count);
+        }
+        return needed;
+    }
+
+    // the caller saved registers plus the argument registers the function doesn't take an argument in,
+    // a0 and f12 are written by the intrinsics so they are never handed out
+    protected List<Register> getCallerSavedRegisters(Type type){
+        List<Register> registers = new ArrayList<>();
+        if(type.equals(Type.Float)) {
+            registers.addAll(floatCallerSavedRegisters);
+            registers.addAll(Function.floatArgumentRegisters.subList(Math.max(1, func.getFloatArguments().size()), Function.floatArgumentRegisters.size()));
+        } else {
+            registers.addAll(intCallerSavedRegisters);
+            registers.addAll(Function.intArgumentRegisters.subList(Math.max(1, func.getIntArguments().size()), Function.intArgumentRegisters.size()));
+        }
+        return registers;
+    }
+
+    // registers a call may overwrite: whatever the callee writes, or everything but the callee saved registers
+    // when nothing is known about it, plus the registers the call passes its arguments and result in
+    public Set<String> getClobbers(CallCommand call){
+        Set<String> clobbers = new HashSet<>(List.of(Translator.RETURN_INT.getName(), Translator.RETURN_FLOAT.getName()));
+        // the intrinsics only write a0, and printf also f12
+        if(Function.intrinsicFunctions.contains(call.getFunc())){
+            clobbers.add(Function.intArgumentRegisters.get(0).getName());
+            if(call.getFunc().equals("printf"))
+                clobbers.add(Function.floatArgumentRegisters.get(0).getName());
+            return clobbers;
+        }
+        clobbers.addAll(callGraph == null ? CallGraph.STANDARD_CLOBBERS : callGraph.getClobbers(call.getFunc()));
+        int ints = 0, floats = 0;
+        for(Argument arg: call.getArgs()){
+            if(arg.getType().equals(Type.Float) && floats < Function.floatArgumentRegisters.size())
+                clobbers.add(Function.floatArgumentRegisters.get(floats++).getName());
+            else if(!arg.getType().equals(Type.Float) && ints < Function.intArgumentRegisters.size())
+                clobbers.add(Function.intArgumentRegisters.get(ints++).getName());
+        }
+        return clobbers;
+    }
+
+    // for every variable live across a call, the registers it can't be kept in
+    protected Map<Variable, Set<String>> getCallClobbers(Function func, LiveSet liveSet){
+        Map<Variable, Set<String>> clobbers = new HashMap<>();
+        for(int i = 0; i < func.getNumCommands(); ++i){
+            IRCommand command = func.getCommand(i);
+            if(!(command instanceof CallCommand call))
+                continue;
+            Set<String> clobbered = getClobbers(call);
+            Set<Variable> through = new HashSet<>(liveSet.getOutSet(i));
+            through.removeAll(command.getDecl());
+            for(Variable var: through)
+                clobbers.computeIfAbsent(var, k -> new HashSet<>()).addAll(clobbered);
+        }
+        return clobbers;
+    }
+
     public abstract List<MIPSCommand> enterCommand(IRCommand command);
     public abstract List<MIPSCommand> exitCommand(IRCommand command);
 
@@ -225,8 +329,8 @@ class CFGAllocator extends RegisterAllocator {
             store(var);
         }
 
-        BasicBlocks.Block currBlock = command.getBlock();
-        if (currBlock.getCommands().get(currBlock.getCommands().size() - 1).equals(command)){
+        BasicBlocks graph = func.getControlFlowGraph();
+        if (graph.getLastCommand(graph.getBlockOf(command.getPosition())) == command.getPosition()){
             commandList.addAll(exitBlock());
         }
         return commandList;
@@ -235,76 +339,811 @@ class CFGAllocator extends RegisterAllocator {
 
 class BriggsAllocator extends RegisterAllocator {
     private LivenessAnalysis livenessAnalysis;
+    private Statistics statistics;
+    private Profile profile;
     private InterferenceGraph graph;
 
     @Override
     public void reset(Function func){
         super.reset(func);
+        // spilled variables are colored too, only variables without a node need registers kept aside
+        int intColors = intSavedRegisters.size() - getNumScratch(Type.Integer);
+        int floatColors = floatSavedRegisters.size() - getNumScratch(Type.Float);
+        this.savedIntRegisterMemory = new RegisterMemory(intSavedRegisters.subList(intColors, intSavedRegisters.size()));
+        this.savedFloatRegisterMemory = new RegisterMemory(floatSavedRegisters.subList(floatColors, floatSavedRegisters.size()));
         graph = new InterferenceGraph(livenessAnalysis.getLiveSet(func.getFuncName()),
-                                      intSavedRegisters.stream().limit(5).collect(Collectors.toSet()),
-                                      floatSavedRegisters.stream().limit(3).collect(Collectors.toSet()));
+                                      getCallerSavedRegisters(Type.Integer),
+                                      intSavedRegisters.subList(0, intColors),
+                                      getCallerSavedRegisters(Type.Float),
+                                      floatSavedRegisters.subList(0, floatColors),
+                                      getCallClobbers(func, livenessAnalysis.getLiveSet(func.getFuncName())),
+                                      profile == null ? null : profile.getCounts(func));
+        statistics.add(func.getFuncName(), "coalesced moves", graph.getNumCoalesced());
+        statistics.add(func.getFuncName(), "spill rounds", graph.getNumSpillRounds());
+        statistics.add(func.getFuncName(), "spilled variables", graph.getNumSpilled());
     }
 
-    public BriggsAllocator(LivenessAnalysis livenessAnalysis) {
+    public BriggsAllocator(LivenessAnalysis livenessAnalysis, Statistics statistics, Profile profile) {
         this.livenessAnalysis = livenessAnalysis;
+        this.statistics = statistics;
+        this.profile = profile;
     }
 
     @Override
     public List<MIPSCommand> enterCommand(IRCommand command) {
         List<MIPSCommand> commandList = new ArrayList<>();
+        int position = command.getPosition();
 
         Set<Variable> decl = new HashSet<>(command.getDecl());
         Set<Variable> used = new HashSet<>(command.getUsed());
 
-        for(Variable var: used) {
-            if (inRegister(var)) continue;
-            Register reg = graph.getRegister(var);
-            if(reg != null){
-                if(reg.getType().equals(Type.Float))
-                    savedFloatRegisterMemory.declarePair(var, reg);
+        // a call's destination gets its register before the arguments take the spill registers, the translator
+        // loads the arguments that don't fit itself but has nowhere else to put the result
+        if(command instanceof CallCommand)
+            for(Variable var: decl)
+                if(used.contains(var))
+                    use(var, position, commandList);
                 else
-                    savedIntRegisterMemory.declarePair(var, reg);
-                continue;
-            }
-            load(var);
-            commandList.add(loadCommand(getRegister(var), func.getAddress(var), var.getType().equals(Type.Float)));
-        }
+                    declare(var, position);
 
-        for(Variable var: decl){
-            Register reg = graph.getRegister(var);
-            if(reg != null){
-                if(reg.getType().equals(Type.Float))
-                    savedFloatRegisterMemory.declarePair(var, reg);
-                else
-                    savedIntRegisterMemory.declarePair(var, reg);
-                continue;
-            }
-            if (inRegister(var)) continue;
-            load(var);
-        }
+        for(Variable var: used)
+            use(var, position, commandList);
+
+        for(Variable var: decl)
+            declare(var, position);
 
         return commandList;
     }
 
+    private void use(Variable var, int position, List<MIPSCommand> commandList){
+        if (inRegister(var)) return;
+        Register reg = graph.getRegister(var);
+        if(reg != null){
+            declarePair(var, reg);
+            return;
+        }
+        // spilled variables are loaded into the short lived register colored for this command
+        reg = graph.getSpillRegister(var, position);
+        if(reg != null){
+            declarePair(var, reg);
+            commandList.add(loadCommand(reg, func.getAddress(var), var.getType().equals(Type.Float)));
+            return;
+        }
+        // call arguments that don't fit in the spill registers are loaded by the translator
+        if(load(var) == null) return;
+        commandList.add(loadCommand(getRegister(var), func.getAddress(var), var.getType().equals(Type.Float)));
+    }
+
+    private void declare(Variable var, int position){
+        Register reg = graph.getRegister(var);
+        if(reg == null)
+            reg = graph.getSpillRegister(var, position);
+        if(reg != null)
+            declarePair(var, reg);
+        else if(!inRegister(var))
+            load(var);
+    }
+
     @Override
     public List<MIPSCommand> exitCommand(IRCommand command) {
         List<MIPSCommand> commandList = new ArrayList<>();
+        int position = command.getPosition();
 
         Set<Variable> decl = new HashSet<>(command.getDecl());
         Set<Variable> used = new HashSet<>(command.getUsed());
 
         for(Variable var: decl){
             if(graph.getRegister(var) != null) continue;
+            Register reg = graph.getSpillRegister(var, position);
+            if(reg != null){
+                commandList.add(storeCommand(reg, func.getAddress(var), var.getType().equals(Type.Float)));
+                deletePair(var);
+                continue;
+            }
             commandList.add(storeCommand(getRegister(var), func.getAddress(var), var.getType().equals(Type.Float)));
             store(var);
         }
 
         for(Variable var: used) {
             if(graph.getRegister(var) != null) continue;
+            if(graph.getSpillRegister(var, position) != null)
+                deletePair(var);
+            else
+                store(var);
+        }
+
+        return commandList;
+    }
+}
+
+class LinearScanAllocator extends RegisterAllocator {
+    // registers handed to live intervals, the rest of the saved registers are left for spilled variables
+    private final static int INT_COLORS = 5;
+    private final static int FLOAT_COLORS = 3;
+
+    private LivenessAnalysis livenessAnalysis;
+    private Statistics statistics;
+
+    // per variable id of the current function: the interval [start, end] over command positions,
+    // its register and the first position from which the variable lives in memory instead
+    private int[] start;
+    private int[] end;
+    private int[] split;
+    private Register[] registers;
+
+    // split variables reloaded at the start of a block, control reaches it from past their split point
+    private Map<Integer, List<Variable>> reloads;
+
+    public LinearScanAllocator(LivenessAnalysis livenessAnalysis, Statistics statistics) {
+        this.livenessAnalysis = livenessAnalysis;
+        this.statistics = statistics;
+    }
+
+    @Override
+    public void reset(Function func){
+        super.reset(func);
+        this.savedIntRegisterMemory = new RegisterMemory(intSavedRegisters.subList(INT_COLORS, intSavedRegisters.size()));
+        this.savedFloatRegisterMemory = new RegisterMemory(floatSavedRegisters.subList(FLOAT_COLORS, floatSavedRegisters.size()));
+
+        LiveSet liveSet = livenessAnalysis.getLiveSet(func.getFuncName());
+        buildIntervals(liveSet);
+        allocate(Type.Integer, getCallerSavedRegisters(Type.Integer), intSavedRegisters.subList(0, INT_COLORS));
+        allocate(Type.Float, getCallerSavedRegisters(Type.Float), floatSavedRegisters.subList(0, FLOAT_COLORS));
+        buildReloads(liveSet);
+    }
+
+    // commands are already laid out block after block, the interval of a variable is the hull of the
+    // positions it is live at, so block boundaries plus the commands touching it are enough
+    private void buildIntervals(LiveSet liveSet){
+        int numVars = func.getNumVariables();
+        start = new int[numVars];
+        end = new int[numVars];
+        split = new int[numVars];
+        registers = new Register[numVars];
+        Arrays.fill(start, Integer.MAX_VALUE);
+        Arrays.fill(end, -1);
+        Arrays.fill(split, Integer.MAX_VALUE);
+
+        BasicBlocks graph = func.getControlFlowGraph();
+        for(int b = 0; b < graph.getNumBlocks(); ++b){
+            extend(liveSet.getBlockInBits(b), graph.getFirstCommand(b));
+            extend(liveSet.getBlockOutBits(b), graph.getLastCommand(b));
+        }
+        for(int i = 0; i < func.getNumCommands(); ++i){
+            IRCommand command = func.getCommand(i);
+            for(Variable var: command.getUsed())
+                extend(func.getVariableId(var), i);
+            for(Variable var: command.getDecl())
+                extend(func.getVariableId(var), i);
+        }
+    }
+
+    private void extend(BitSet vars, int position){
+        for(int v = vars.nextSetBit(0); v >= 0; v = vars.nextSetBit(v + 1))
+            extend(v, position);
+    }
+
+    private void extend(int v, int position){
+        if(!func.isLocalVariable(func.getVariableById(v)))
+            return;
+        start[v] = Math.min(start[v], position);
+        end[v] = Math.max(end[v], position);
+    }
+
+    // positions of the calls in the function
+    private List<Integer> getCallPositions(){
+        List<Integer> calls = new ArrayList<>();
+        for(int i = 0; i < func.getNumCommands(); ++i)
+            if(func.getCommand(i) instanceof CallCommand)
+                calls.add(i);
+        return calls;
+    }
+
+    // registers overwritten by the calls an interval spans, a call at the first or last position is the
+    // definition or the last use, the value doesn't live across it
+    private Set<String> getIntervalClobbers(List<Integer> calls, int start, int end){
+        Set<String> clobbered = new HashSet<>();
+        int k = Collections.binarySearch(calls, start + 1);
+        for(k = k < 0 ? -k - 1 : k; k < calls.size() && calls.get(k) < end; ++k)
+            clobbered.addAll(getClobbers((CallCommand) func.getCommand(calls.get(k))));
+        return clobbered;
+    }
+
+    private static Register take(Deque<Register> free, Set<String> clobbered){
+        for(Iterator<Register> it = free.iterator(); it.hasNext(); ){
+            Register register = it.next();
+            if(!clobbered.contains(register.getName())){
+                it.remove();
+                return register;
+            }
+        }
+        return null;
+    }
+
+    // intervals take a caller saved register while one the calls they span don't overwrite is free, and a
+    // callee saved one otherwise
+    private void allocate(Type type, List<Register> callerSaved, List<Register> calleeSaved){
+        // intervals ordered by start position, a counting sort keeps the scan linear
+        int n = func.getNumCommands();
+        int[] offsets = new int[n + 1];
+        int numIntervals = 0;
+        for(int v = 0; v < start.length; ++v) {
+            if (end[v] == -1 || !func.getVariableById(v).getType().equals(type))
+                continue;
+            ++offsets[start[v] + 1];
+            ++numIntervals;
+        }
+        for(int i = 0; i < n; ++i)
+            offsets[i + 1] += offsets[i];
+        int[] order = new int[numIntervals];
+        for(int v = 0; v < start.length; ++v)
+            if (end[v] != -1 && func.getVariableById(v).getType().equals(type))
+                order[offsets[start[v]]++] = v;
+
+        List<Integer> calls = getCallPositions();
+        Deque<Register> freeCallerSaved = new ArrayDeque<>(callerSaved);
+        Deque<Register> freeCalleeSaved = new ArrayDeque<>(calleeSaved);
+        List<Integer> active = new ArrayList<>();
+        int numSplit = 0, numSpilled = 0;
+        for(int v: order){
+            for(Iterator<Integer> it = active.iterator(); it.hasNext(); ){
+                int a = it.next();
+                if(end[a] < start[v]) {
+                    (callerSaved.contains(registers[a]) ? freeCallerSaved : freeCalleeSaved).push(registers[a]);
+                    it.remove();
+                }
+            }
+            Set<String> clobbered = getIntervalClobbers(calls, start[v], end[v]);
+            Register register = take(freeCallerSaved, clobbered);
+            if(register == null)
+                register = take(freeCalleeSaved, clobbered);
+            if(register != null){
+                registers[v] = register;
+                active.add(v);
+                continue;
+            }
+
+            // no register left: the interval reaching furthest is split here and gives its register away,
+            // unless the new interval itself reaches further, then it stays in memory as a whole
+            int furthest = -1;
+            for(int a: active)
+                if(!clobbered.contains(registers[a].getName()) && (furthest == -1 || end[a] > end[furthest]))
+                    furthest = a;
+            if(furthest != -1 && end[furthest] > end[v]){
+                split[furthest] = start[v];
+                registers[v] = registers[furthest];
+                active.remove(Integer.valueOf(furthest));
+                active.add(v);
+                ++numSplit;
+            } else {
+                split[v] = start[v];
+                ++numSpilled;
+            }
+        }
+        String kind = type.equals(Type.Float) ? "float" : "int";
+        statistics.add(func.getFuncName(), "split " + kind + " intervals", numSplit);
+        statistics.add(func.getFuncName(), "spilled " + kind + " intervals", numSpilled);
+    }
+
+    // the register of a split variable is handed to other intervals past its split point, a block inside
+    // the register part that control reaches from there (a loop back edge) reloads it from memory, which
+    // every definition in the register part writes through to
+    private void buildReloads(LiveSet liveSet){
+        reloads = new HashMap<>();
+        BasicBlocks graph = func.getControlFlowGraph();
+        for(int b = 0; b < graph.getNumBlocks(); ++b){
+            int first = graph.getFirstCommand(b);
+            int latest = -1;
+            for(int k = 0; k < graph.getNumPredecessors(b); ++k)
+                latest = Math.max(latest, graph.getLastCommand(graph.getPredecessor(b, k)));
+            if(latest < first)
+                continue;
+            BitSet in = liveSet.getBlockInBits(b);
+            for(int v = in.nextSetBit(0); v >= 0; v = in.nextSetBit(v + 1)){
+                if(registers[v] != null && start[v] <= first && first < split[v] && split[v] <= latest)
+                    reloads.computeIfAbsent(b, k -> new ArrayList<>()).add(func.getVariableById(v));
+            }
+        }
+    }
+
+    // register holding the variable at the given position, null when it lives in memory there
+    private Register getIntervalRegister(Variable var, int position){
+        Integer v = func.getVariableId(var);
+        if(v == null || registers[v] == null || position >= split[v])
+            return null;
+        return registers[v];
+    }
+
+    @Override
+    public List<MIPSCommand> enterCommand(IRCommand command) {
+        List<MIPSCommand> commandList = new ArrayList<>();
+        int position = command.getPosition();
+        BasicBlocks graph = func.getControlFlowGraph();
+        int block = graph.getBlockOf(position);
+        if(graph.getFirstCommand(block) == position){
+            for(Variable var: reloads.getOrDefault(block, List.of()))
+                commandList.add(loadCommand(getIntervalRegister(var, position), func.getAddress(var), var.getType().equals(Type.Float)));
+        }
+
+        // a call's destination gets its register before the arguments take the spill registers, the translator
+        // loads the arguments that don't fit itself but has nowhere else to put the result
+        if(command instanceof CallCommand)
+            for(Variable var: command.getDecl())
+                if(command.getUsed().contains(var))
+                    use(var, position, commandList);
+                else
+                    declare(var, position);
+
+        for(Variable var: command.getUsed())
+            use(var, position, commandList);
+
+        for(Variable var: command.getDecl())
+            declare(var, position);
+
+        return commandList;
+    }
+
+    private void use(Variable var, int position, List<MIPSCommand> commandList){
+        Register reg = getIntervalRegister(var, position);
+        if(reg != null){
+            declarePair(var, reg);
+            return;
+        }
+        if (inRegister(var)) return;
+        // call arguments that don't fit in the spill registers are loaded by the translator
+        if(load(var) == null) return;
+        commandList.add(loadCommand(getRegister(var), func.getAddress(var), var.getType().equals(Type.Float)));
+    }
+
+    private void declare(Variable var, int position){
+        Register reg = getIntervalRegister(var, position);
+        if(reg != null)
+            declarePair(var, reg);
+        else if(!inRegister(var))
+            load(var);
+    }
+
+    @Override
+    public List<MIPSCommand> exitCommand(IRCommand command) {
+        List<MIPSCommand> commandList = new ArrayList<>();
+        int position = command.getPosition();
+
+        for(Variable var: command.getDecl()){
+            Register reg = getIntervalRegister(var, position);
+            if(reg != null){
+                if(split[func.getVariableId(var)] != Integer.MAX_VALUE)
+                    commandList.add(storeCommand(reg, func.getAddress(var), var.getType().equals(Type.Float)));
+                deletePair(var);
+                continue;
+            }
+            commandList.add(storeCommand(getRegister(var), func.getAddress(var), var.getType().equals(Type.Float)));
             store(var);
         }
 
+        for(Variable var: command.getUsed()) {
+            if(getIntervalRegister(var, position) != null)
+                deletePair(var);
+            else
+                store(var);
+        }
+
         return commandList;
     }
 }
 
+class SSAAllocator extends RegisterAllocator {
+    private LivenessAnalysis livenessAnalysis;
+    private Statistics statistics;
+    private Profile profile;
+
+    // register each SSA name keeps for its whole life, and per command the short lived registers of the
+    // spilled names it reads or writes
+    private Map<Variable, Register> registers;
+    private Map<IRCommand, Map<Variable, Register>> spillRegisters;
+    private int intColors;
+    private int floatColors;
+
+    public SSAAllocator(LivenessAnalysis livenessAnalysis, Statistics statistics, Profile profile) {
+        this.livenessAnalysis = livenessAnalysis;
+        this.statistics = statistics;
+        this.profile = profile;
+    }
+
+    @Override
+    public Function prepare(Function func){
+        this.func = func;
+        // a copy between two spilled names or through the temporary of a copy cycle takes two scratch registers
+        intColors = intSavedRegisters.size() - getNumScratch(Type.Integer, hasLocalVariable(Type.Integer) ? 2 : 0);
+        floatColors = floatSavedRegisters.size() - getNumScratch(Type.Float, hasLocalVariable(Type.Float) ? 2 : 0);
+
+        SSAForm ssa = new SSAForm(func, livenessAnalysis.getLiveSet(func.getFuncName()));
+        registers = new HashMap<>();
+        spillRegisters = new IdentityHashMap<>();
+        double[] weight = getWeights(ssa);
+        boolean[] spilled = new boolean[ssa.getNumVariables()];
+        List<Set<String>> clobbers = getCallClobbers(ssa);
+        // callee saved colors come first, the caller saved registers follow them
+        List<Register> intRegisters = new ArrayList<>(intSavedRegisters.subList(0, intColors));
+        intRegisters.addAll(getCallerSavedRegisters(Type.Integer));
+        List<Register> floatRegisters = new ArrayList<>(floatSavedRegisters.subList(0, floatColors));
+        floatRegisters.addAll(getCallerSavedRegisters(Type.Float));
+        int numSpilled = spill(ssa, weight, spilled, Type.Integer, intRegisters, intColors)
+                       + spill(ssa, weight, spilled, Type.Float, floatRegisters, floatColors);
+        numSpilled += color(ssa, spilled, clobbers, Type.Integer, intRegisters, intColors)
+                    + color(ssa, spilled, clobbers, Type.Float, floatRegisters, floatColors);
+        Function lowered = ssa.toFunction(registers);
+
+        statistics.add(func.getFuncName(), "ssa names", ssa.getNumVariables());
+        statistics.add(func.getFuncName(), "spilled variables", numSpilled);
+        statistics.add(func.getFuncName(), "phi copies", ssa.getNumCopies());
+        statistics.add(func.getFuncName(), "split edges", ssa.getNumSplitEdges());
+        return lowered;
+    }
+
+    @Override
+    public void reset(Function func){
+        super.reset(func);
+        this.savedIntRegisterMemory = new RegisterMemory(intSavedRegisters.subList(intColors, intSavedRegisters.size()));
+        this.savedFloatRegisterMemory = new RegisterMemory(floatSavedRegisters.subList(floatColors, floatSavedRegisters.size()));
+    }
+
+    private int getNumScratch(Type type, int least){
+        return Math.max(least, getNumScratch(type));
+    }
+
+    private boolean hasLocalVariable(Type type){
+        for(int v = 0; v < func.getNumVariables(); ++v){
+            Variable var = func.getVariableById(v);
+            if(var.getType().equals(type) && func.isLocalVariable(var))
+                return true;
+        }
+        return false;
+    }
+
+    // uses and definitions weighted by loop depth, or by how often their block ran when there is a profile,
+    // phi arguments count in the predecessor they are copied in
+    private double[] getWeights(SSAForm ssa){
+        LoopInfo loops = new LoopInfo(ssa.getDominators());
+        BasicBlocks graph = ssa.getDominators().getGraph();
+        double[] counts = profile == null ? null : profile.getCounts(func);
+        double[] weight = new double[ssa.getNumVariables()];
+        for(int b: ssa.getDominators().getReversePostOrder()){
+            double w = counts != null ? counts[b] : Math.pow(10, loops.getLoopDepth(b));
+            for(PhiCommand phi: ssa.getPhis(b))
+                weight[ssa.getId(phi.getDest())] += w;
+            for(IRCommand command: ssa.getBody(b)){
+                for(int v: ssa.getUses(command)) weight[v] += w;
+                for(int v: ssa.getDefs(command)) weight[v] += w;
+            }
+            for(int k = 0; k < graph.getNumSuccessors(b); ++k){
+                BitSet uses = ssa.getPhiUses(graph.getSuccessor(b, k), b);
+                for(int v = uses.nextSetBit(0); v >= 0; v = uses.nextSetBit(v + 1))
+                    weight[v] += w;
+            }
+        }
+        return weight;
+    }
+
+    // names live right after each command of the block
+    private BitSet[] getLiveOuts(SSAForm ssa, int b){
+        List<IRCommand> body = ssa.getBody(b);
+        BitSet[] outs = new BitSet[body.size()];
+        BitSet live = (BitSet) ssa.getLiveOut(b).clone();
+        for(int i = body.size() - 1; i >= 0; --i){
+            outs[i] = (BitSet) live.clone();
+            for(int v: ssa.getDefs(body.get(i))) live.clear(v);
+            for(int v: ssa.getUses(body.get(i))) live.set(v);
+        }
+        return outs;
+    }
+
+    // per name, the registers overwritten by the calls it lives across, null for names that cross none
+    private List<Set<String>> getCallClobbers(SSAForm ssa){
+        List<Set<String>> clobbers = new ArrayList<>(Collections.nCopies(ssa.getNumVariables(), null));
+        for(int b: ssa.getDominators().getReversePostOrder()){
+            List<IRCommand> body = ssa.getBody(b);
+            BitSet[] outs = getLiveOuts(ssa, b);
+            for(int i = 0; i < body.size(); ++i){
+                if(!(body.get(i) instanceof CallCommand call))
+                    continue;
+                Set<String> clobbered = getClobbers(call);
+                BitSet through = (BitSet) outs[i].clone();
+                for(int v: ssa.getDefs(call)) through.clear(v);
+                for(int v = through.nextSetBit(0); v >= 0; v = through.nextSetBit(v + 1)){
+                    if(clobbers.get(v) == null)
+                        clobbers.set(v, new HashSet<>());
+                    clobbers.get(v).addAll(clobbered);
+                }
+            }
+        }
+        return clobbers;
+    }
+
+    // colors whose registers are in the set
+    private static int getMask(List<Register> colors, Set<String> registers){
+        int mask = 0;
+        for(int c = 0; c < colors.size(); ++c)
+            if(registers.contains(colors.get(c).getName()))
+                mask |= 1 << c;
+        return mask;
+    }
+
+    private boolean isCandidate(SSAForm ssa, int v, boolean[] spilled, Type type){
+        return !spilled[v] && ssa.getVariable(v).getType().equals(type);
+    }
+
+    private int count(SSAForm ssa, BitSet vars, boolean[] spilled, Type type){
+        int count = 0;
+        for(int v = vars.nextSetBit(0); v >= 0; v = vars.nextSetBit(v + 1))
+            if(isCandidate(ssa, v, spilled, type)) ++count;
+        return count;
+    }
+
+    private int cheapest(SSAForm ssa, BitSet vars, double[] weight, boolean[] spilled, Type type){
+        int best = -1;
+        for(int v = vars.nextSetBit(0); v >= 0; v = vars.nextSetBit(v + 1))
+            if(isCandidate(ssa, v, spilled, type) && (best == -1 || weight[v] < weight[best]))
+                best = v;
+        return best;
+    }
+
+    // spills until no point needs more than k registers and no call has more names live across it than the
+    // callee saved colors plus the caller saved ones the call leaves alone. A spilled name only holds a
+    // register at the commands reading or writing it, so the cheapest name live across an overfull point
+    // without being touched there goes first, call arguments never need one since the translator loads
+    // them itself
+    private int spill(SSAForm ssa, double[] weight, boolean[] spilled, Type type, List<Register> colors, int numSaved){
+        int k = colors.size();
+        int numSpilled = 0;
+        for(int b: ssa.getDominators().getReversePostOrder()){
+            BitSet entry = (BitSet) ssa.getLiveIn(b).clone();
+            for(PhiCommand phi: ssa.getPhis(b))
+                entry.set(ssa.getId(phi.getDest()));
+            while(count(ssa, entry, spilled, type) > k){
+                spilled[cheapest(ssa, entry, weight, spilled, type)] = true;
+                ++numSpilled;
+            }
+
+            List<IRCommand> body = ssa.getBody(b);
+            BitSet[] outs = getLiveOuts(ssa, b);
+            for(int i = 0; i < body.size(); ++i){
+                IRCommand command = body.get(i);
+                int[] uses = ssa.getUses(command);
+                int[] defs = ssa.getDefs(command);
+                boolean call = command instanceof CallCommand;
+                BitSet in = (BitSet) outs[i].clone();
+                BitSet out = (BitSet) outs[i].clone();
+                BitSet candidates = (BitSet) outs[i].clone();
+                for(int v: defs) { in.clear(v); out.set(v); candidates.clear(v); }
+                for(int v: uses) { in.set(v); if(!call) candidates.clear(v); }
+                while(true){
+                    int inCount = count(ssa, in, spilled, type);
+                    int outCount = count(ssa, out, spilled, type);
+                    for(int v: uses)
+                        if(!call && spilled[v] && ssa.getVariable(v).getType().equals(type)) ++inCount;
+                    for(int v: defs)
+                        if(spilled[v] && ssa.getVariable(v).getType().equals(type)) ++outCount;
+                    if(Math.max(inCount, outCount) <= k)
+                        break;
+                    int v = cheapest(ssa, candidates, weight, spilled, type);
+                    if(v == -1)
+                        throw new IllegalStateException("not enough registers for " + command);
+                    spilled[v] = true;
+                    ++numSpilled;
+                }
+                if(!call)
+                    continue;
+                int kept = k - Integer.bitCount(getMask(colors, getClobbers((CallCommand) command)) & ~((1 << numSaved) - 1));
+                BitSet through = (BitSet) outs[i].clone();
+                for(int v: defs) through.clear(v);
+                while(count(ssa, through, spilled, type) > kept){
+                    spilled[cheapest(ssa, through, weight, spilled, type)] = true;
+                    ++numSpilled;
+                }
+            }
+        }
+        return numSpilled;
+    }
+
+    private int getMask(SSAForm ssa, BitSet vars, int[] color){
+        int mask = 0;
+        for(int v = vars.nextSetBit(0); v >= 0; v = vars.nextSetBit(v + 1))
+            if(color[v] != -1) mask |= 1 << color[v];
+        return mask;
+    }
+
+    // colors below numSaved are callee saved, every name tries the caller saved colors above first but one
+    // live across a call can't take those the call overwrites. -1 when nothing the name may take is free
+    private int lowestFree(int mask, int k, int numSaved, int clobbered){
+        int free = ~mask & ~clobbered & ((1 << k) - 1);
+        int saved = (1 << numSaved) - 1;
+        if((free & ~saved) != 0)
+            free &= ~saved;
+        return free == 0 ? -1 : Integer.numberOfTrailingZeros(free);
+    }
+
+    private int lowestFree(int mask, int k, int numSaved){
+        int c = lowestFree(mask, k, numSaved, 0);
+        if(c == -1)
+            throw new IllegalStateException("more than " + k + " names live in " + func.getFuncName());
+        return c;
+    }
+
+    // colors until every name got a register, a name live across a call that finds every register the call
+    // leaves alone taken goes to memory and the coloring starts over. Returns the number of names spilled that way
+    private int color(SSAForm ssa, boolean[] spilled, List<Set<String>> clobbers, Type type, List<Register> colors, int numSaved){
+        int[] clobbered = new int[ssa.getNumVariables()];
+        for(int v = 0; v < clobbered.length; ++v)
+            if(clobbers.get(v) != null)
+                clobbered[v] = getMask(colors, clobbers.get(v));
+        int numSpilled = 0;
+        int[] color = new int[ssa.getNumVariables()];
+        Map<IRCommand, Map<Variable, Register>> temps = new IdentityHashMap<>();
+        int failed;
+        while((failed = tryColor(ssa, spilled, clobbered, type, colors, numSaved, color, temps)) != -1){
+            spilled[failed] = true;
+            ++numSpilled;
+        }
+        for(var entry: temps.entrySet())
+            spillRegisters.computeIfAbsent(entry.getKey(), key -> new HashMap<>()).putAll(entry.getValue());
+        for(int v = 0; v < color.length; ++v)
+            if(color[v] != -1)
+                registers.put(ssa.getVariable(v), colors.get(color[v]));
+        return numSpilled;
+    }
+
+    // dominance order: everything live into a block is colored by then, so its phis and every definition
+    // after them take the lowest register free at their point, which MaxLive <= k guarantees exists unless the
+    // name is live across a call. Returns such a name when it finds nothing, -1 once everything is colored
+    private int tryColor(SSAForm ssa, boolean[] spilled, int[] clobbered, Type type, List<Register> colors,
+                         int numSaved, int[] color, Map<IRCommand, Map<Variable, Register>> spillTemps){
+        int k = colors.size();
+        Arrays.fill(color, -1);
+        spillTemps.clear();
+        int[] order = ssa.getDominators().getReversePostOrder();
+        for(int b: order){
+            BitSet liveIn = ssa.getLiveIn(b);
+            int mask = 0;
+            // the original variables stand for values on entry, they are defined before the first command
+            if(b == order[0])
+                for(int v = liveIn.nextSetBit(0); v >= 0; v = liveIn.nextSetBit(v + 1))
+                    if(isCandidate(ssa, v, spilled, type)) {
+                        color[v] = lowestFree(mask, k, numSaved, clobbered[v]);
+                        if(color[v] == -1)
+                            return v;
+                        mask |= 1 << color[v];
+                    }
+            mask = getMask(ssa, liveIn, color);
+            for(PhiCommand phi: ssa.getPhis(b)){
+                int d = ssa.getId(phi.getDest());
+                if(!isCandidate(ssa, d, spilled, type))
+                    continue;
+                color[d] = lowestFree(mask, k, numSaved, clobbered[d]);
+                if(color[d] == -1)
+                    return d;
+                mask |= 1 << color[d];
+            }
+
+            List<IRCommand> body = ssa.getBody(b);
+            BitSet[] outs = getLiveOuts(ssa, b);
+            for(int i = 0; i < body.size(); ++i){
+                IRCommand command = body.get(i);
+                int[] uses = ssa.getUses(command);
+                int[] defs = ssa.getDefs(command);
+                BitSet in = (BitSet) outs[i].clone();
+                for(int v: defs) in.clear(v);
+                BitSet through = (BitSet) in.clone();
+                for(int v: uses) in.set(v);
+
+                Map<Variable, Register> temps = new HashMap<>();
+                int inMask = getMask(ssa, in, color);
+                if(!(command instanceof CallCommand))
+                    for(int v: uses){
+                        if(!spilled[v] || !ssa.getVariable(v).getType().equals(type))
+                            continue;
+                        int c = lowestFree(inMask, k, numSaved);
+                        inMask |= 1 << c;
+                        temps.put(ssa.getVariable(v), colors.get(c));
+                    }
+                // a definition may take the register of a name read for the last time by the same command
+                int outMask = getMask(ssa, through, color);
+                for(int v: defs){
+                    if(!ssa.getVariable(v).getType().equals(type))
+                        continue;
+                    if(spilled[v]) {
+                        int c = lowestFree(outMask, k, numSaved);
+                        outMask |= 1 << c;
+                        temps.put(ssa.getVariable(v), colors.get(c));
+                        continue;
+                    }
+                    color[v] = lowestFree(outMask, k, numSaved, clobbered[v]);
+                    if(color[v] == -1)
+                        return v;
+                    outMask |= 1 << color[v];
+                }
+                if(!temps.isEmpty())
+                    spillTemps.put(command, temps);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public List<MIPSCommand> enterCommand(IRCommand command) {
+        List<MIPSCommand> commandList = new ArrayList<>();
+        Map<Variable, Register> temps = spillRegisters.getOrDefault(command, Map.of());
+
+        // a call's destination gets its register before the arguments take the scratch registers, the translator
+        // loads the arguments that don't fit itself but has nowhere else to put the result
+        if(command instanceof CallCommand)
+            for(Variable var: command.getDecl())
+                if(command.getUsed().contains(var))
+                    use(var, temps, commandList);
+                else
+                    declare(var, temps);
+
+        for(Variable var: command.getUsed())
+            use(var, temps, commandList);
+
+        for(Variable var: command.getDecl())
+            declare(var, temps);
+
+        return commandList;
+    }
+
+    private void use(Variable var, Map<Variable, Register> temps, List<MIPSCommand> commandList){
+        if (inRegister(var)) return;
+        Register reg = registers.get(var);
+        if(reg != null){
+            declarePair(var, reg);
+            return;
+        }
+        reg = temps.get(var);
+        if(reg != null){
+            declarePair(var, reg);
+            commandList.add(loadCommand(reg, func.getAddress(var), var.getType().equals(Type.Float)));
+            return;
+        }
+        // call arguments and phi copies between spilled names go through the scratch registers
+        if(load(var) == null) return;
+        commandList.add(loadCommand(getRegister(var), func.getAddress(var), var.getType().equals(Type.Float)));
+    }
+
+    private void declare(Variable var, Map<Variable, Register> temps){
+        Register reg = registers.get(var);
+        if(reg == null)
+            reg = temps.get(var);
+        if(reg != null)
+            declarePair(var, reg);
+        else if(!inRegister(var))
+            load(var);
+    }
+
+    @Override
+    public List<MIPSCommand> exitCommand(IRCommand command) {
+        List<MIPSCommand> commandList = new ArrayList<>();
+        Map<Variable, Register> temps = spillRegisters.getOrDefault(command, Map.of());
+
+        for(Variable var: command.getDecl()){
+            if(registers.containsKey(var)) continue;
+            Register reg = temps.get(var);
+            if(reg != null){
+                commandList.add(storeCommand(reg, func.getAddress(var), var.getType().equals(Type.Float)));
+                deletePair(var);
+                continue;
+            }
+            commandList.add(storeCommand(getRegister(var), func.getAddress(var), var.getType().equals(Type.Float)));
+            store(var);
+        }
+
+        for(Variable var: command.getUsed()) {
+            if(registers.containsKey(var)) continue;
+            if(temps.containsKey(var))
+                deletePair(var);
+            else
+                store(var);
+        }
+
+        return commandList;
+    }
+}
@@ -0,0 +1,400 @@
+import java.util.*;
+
+public class SSAForm {
+    private final Function function;
+    private final BasicBlocks graph;
+    private final DominatorTree dominators;
+
+    // per block: phi functions at its entry, the original variable each one merges, and the renamed
+    // copies of the block's commands, blocks unreachable from the entry keep empty lists and are dropped
+    private final List<List<PhiCommand>> phis;
+    private final List<List<Variable>> phiOrigins;
+    private final List<List<IRCommand>> bodies;
+
+    // dense ids over the local scalars and their versions, a local variable itself names its value on entry
+    private final List<Variable> variables;
+    private final Map<Variable, Integer> ids;
+    private final Map<Variable, Variable> origins;
+
+    // live in leaves out the phi definitions of the block, live out has what the phis of the successors
+    // read along the edge
+    private BitSet[] liveIn;
+    private BitSet[] liveOut;
+
+    private int numCopies;
+    private int numSplitEdges;
+
+    public SSAForm(Function function, LiveSet liveSet) {
+        this.function = function;
+        this.graph = function.getControlFlowGraph();
+        this.dominators = new DominatorTree(graph);
+        this.phis = new ArrayList<>();
+        this.phiOrigins = new ArrayList<>();
+        this.bodies = new ArrayList<>();
+        this.variables = new ArrayList<>();
+        this.ids = new HashMap<>();
+        this.origins = new HashMap<>();
+        for (int b = 0; b < graph.getNumBlocks(); ++b) {
+            phis.add(new ArrayList<>());
+            phiOrigins.add(new ArrayList<>());
+            bodies.add(new ArrayList<>());
+        }
+        for (int v = 0; v < function.getNumVariables(); ++v)
+            if (function.isLocalVariable(function.getVariableById(v)))
+                declare(function.getVariableById(v), function.getVariableById(v));
+        placePhis(liveSet);
+        rename();
+        computeLiveness();
+    }
+
+    private int declare(Variable var, Variable origin) {
+        ids.put(var, variables.size());
+        variables.add(var);
+        origins.put(var, origin);
+        return variables.size() - 1;
+    }
+
+    // pruned placement: the iterated frontier of the blocks defining a variable, restricted to the blocks
+    // where the variable is live on entry
+    private void placePhis(LiveSet liveSet) {
+        int numBlocks = graph.getNumBlocks();
+        Map<Variable, BitSet> defSites = new LinkedHashMap<>();
+        for (int b : dominators.getReversePostOrder())
+            for (int i = graph.getFirstCommand(b); i <= graph.getLastCommand(b); ++i)
+                for (Variable var : function.getCommand(i).getDecl())
+                    if (ids.containsKey(var))
+                        defSites.computeIfAbsent(var, k -> new BitSet(numBlocks)).set(b);
+
+        for (var entry : defSites.entrySet()) {
+            Variable var = entry.getKey();
+            int id = function.getVariableId(var);
+            BitSet queued = (BitSet) entry.getValue().clone();
+            BitSet placed = new BitSet(numBlocks);
+            Deque<Integer> pending = new ArrayDeque<>();
+            entry.getValue().stream().forEach(pending::push);
+            while (!pending.isEmpty()) {
+                int b = pending.pop();
+                for (int k = 0; k < dominators.getNumFrontiers(b); ++k) {
+                    int y = dominators.getFrontier(b, k);
+                    if (placed.get(y))
+                        continue;
+                    placed.set(y);
+                    if (liveSet.getBlockInBits(y).get(id)) {
+                        phis.get(y).add(new PhiCommand(var, new Argument[graph.getNumPredecessors(y)]));
+                        phiOrigins.get(y).add(var);
+                    }
+                    if (!queued.get(y)) {
+                        queued.set(y);
+                        pending.push(y);
+                    }
+                }
+            }
+        }
+    }
+
+    // walks the dominator tree keeping a stack of versions per variable, without recursion since
+    // straight line code makes the tree as deep as the function is long
+    private void rename() {
+        if (dominators.getReversePostOrder().length == 0)
+            return;
+        Map<Variable, Deque<Variable>> stacks = new HashMap<>();
+        Map<Variable, Integer> counters = new HashMap<>();
+        Deque<int[]> frames = new ArrayDeque<>();
+        Deque<List<Variable>> defined = new ArrayDeque<>();
+        int entry = dominators.getReversePostOrder()[0];
+        frames.push(new int[]{entry, 0});
+        defined.push(enter(entry, stacks, counters));
+        while (!frames.isEmpty()) {
+            int[] top = frames.peek();
+            if (top[1] < dominators.getNumChildren(top[0])) {
+                int child = dominators.getChild(top[0], top[1]++);
+                frames.push(new int[]{child, 0});
+                defined.push(enter(child, stacks, counters));
+            } else {
+                for (Variable var : defined.pop())
+                    stacks.get(var).pop();
+                frames.pop();
+            }
+        }
+    }
+
+    private List<Variable> enter(int b, Map<Variable, Deque<Variable>> stacks, Map<Variable, Integer> counters) {
+        List<Variable> defined = new ArrayList<>();
+        for (int k = 0; k < phis.get(b).size(); ++k) {
+            Variable var = phiOrigins.get(b).get(k);
+            phis.get(b).get(k).setDest(newVersion(var, stacks, counters));
+            defined.add(var);
+        }
+        for (int i = graph.getFirstCommand(b); i <= graph.getLastCommand(b); ++i) {
+            IRCommand command = function.getCommand(i);
+            bodies.get(b).add(command.copy(
+                    arg -> arg instanceof Variable && ids.containsKey(arg) ? current((Variable) arg, stacks) : arg,
+                    arg -> {
+                        if (!(arg instanceof Variable) || !ids.containsKey(arg))
+                            return arg;
+                        defined.add((Variable) arg);
+                        return newVersion((Variable) arg, stacks, counters);
+                    },
+                    label -> label));
+        }
+        for (int k = 0; k < graph.getNumSuccessors(b); ++k) {
+            int s = graph.getSuccessor(b, k);
+            int edge = getPredecessorIndex(s, b);
+            for (int p = 0; p < phis.get(s).size(); ++p)
+                phis.get(s).get(p).setArg(edge, current(phiOrigins.get(s).get(p), stacks));
+        }
+        return defined;
+    }
+
+    private Variable newVersion(Variable var, Map<Variable, Deque<Variable>> stacks, Map<Variable, Integer> counters) {
+        int n = counters.merge(var, 1, Integer::sum);
+        Variable version = new Variable(var.getName() + "." + n, var.getType());
+        declare(version, var);
+        stacks.computeIfAbsent(var, k -> new ArrayDeque<>()).push(version);
+        return version;
+    }
+
+    private Variable current(Variable var, Map<Variable, Deque<Variable>> stacks) {
+        Deque<Variable> stack = stacks.get(var);
+        return stack == null || stack.isEmpty() ? var : stack.peek();
+    }
+
+    private int getPredecessorIndex(int block, int pred) {
+        for (int k = 0; k < graph.getNumPredecessors(block); ++k)
+            if (graph.getPredecessor(block, k) == pred)
+                return k;
+        return -1;
+    }
+
+    private void computeLiveness() {
+        int numBlocks = graph.getNumBlocks();
+        int numVars = variables.size();
+        BitSet[] gen = new BitSet[numBlocks];
+        BitSet[] kill = new BitSet[numBlocks];
+        liveIn = new BitSet[numBlocks];
+        liveOut = new BitSet[numBlocks];
+        for (int b = 0; b < numBlocks; ++b) {
+            gen[b] = new BitSet(numVars);
+            kill[b] = new BitSet(numVars);
+            liveIn[b] = new BitSet(numVars);
+            liveOut[b] = new BitSet(numVars);
+            for (PhiCommand phi : phis.get(b))
+                kill[b].set(ids.get(phi.getDest()));
+            for (IRCommand command : bodies.get(b)) {
+                for (int v : getUses(command))
+                    if (!kill[b].get(v)) gen[b].set(v);
+                for (int v : getDefs(command))
+                    kill[b].set(v);
+            }
+        }
+
+        int[] order = dominators.getReversePostOrder();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = order.length - 1; i >= 0; --i) {
+                int b = order[i];
+                BitSet out = new BitSet(numVars);
+                for (int k = 0; k < graph.getNumSuccessors(b); ++k) {
+                    int s = graph.getSuccessor(b, k);
+                    out.or(liveIn[s]);
+                    out.or(getPhiUses(s, b));
+                }
+                BitSet in = (BitSet) out.clone();
+                in.andNot(kill[b]);
+                in.or(gen[b]);
+                for (PhiCommand phi : phis.get(b))
+                    in.clear(ids.get(phi.getDest()));
+                if (!in.equals(liveIn[b]) || !out.equals(liveOut[b])) {
+                    liveIn[b] = in;
+                    liveOut[b] = out;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    // ids of the SSA names a command reads or writes, other variables are left to the allocator
+    public int[] getUses(IRCommand command) {
+        return command.getUsed().stream().filter(ids::containsKey).mapToInt(ids::get).toArray();
+    }
+
+    public int[] getDefs(IRCommand command) {
+        return command.getDecl().stream().filter(ids::containsKey).mapToInt(ids::get).toArray();
+    }
+
+    public BitSet getPhiUses(int block, int pred) {
+        BitSet uses = new BitSet(variables.size());
+        int edge = getPredecessorIndex(block, pred);
+        if (edge == -1)
+            return uses;
+        for (PhiCommand phi : phis.get(block))
+            if (phi.getArg(edge) instanceof Variable && ids.containsKey(phi.getArg(edge)))
+                uses.set(ids.get(phi.getArg(edge)));
+        return uses;
+    }
+
+    public Function getFunction() {
+        return function;
+    }
+
+    public DominatorTree getDominators() {
+        return dominators;
+    }
+
+    public List<PhiCommand> getPhis(int block) {
+        return phis.get(block);
+    }
+
+    public List<IRCommand> getBody(int block) {
+        return bodies.get(block);
+    }
+
+    public int getNumVariables() {
+        return variables.size();
+    }
+
+    public Variable getVariable(int id) {
+        return variables.get(id);
+    }
+
+    public Integer getId(Variable var) {
+        return ids.get(var);
+    }
+
+    public Variable getOrigin(Variable var) {
+        return origins.get(var);
+    }
+
+    public BitSet getLiveIn(int block) {
+        return liveIn[block];
+    }
+
+    public BitSet getLiveOut(int block) {
+        return liveOut[block];
+    }
+
+    public int getNumCopies() {
+        return numCopies;
+    }
+
+    public int getNumSplitEdges() {
+        return numSplitEdges;
+    }
+
+    // leaves SSA form once every name has its register, names missing from the map live in memory.
+    // Phis become parallel copies at the end of the predecessor, an edge leaving a conditional branch gets
+    // its own block: right after the branch when it falls through, after the function body otherwise
+    public Function toFunction(Map<Variable, Register> registers) {
+        Map<String, Integer> labels = new HashMap<>();
+        for (int b : dominators.getReversePostOrder())
+            if (!bodies.get(b).isEmpty() && bodies.get(b).get(0) instanceof LabelCommand)
+                labels.put(((LabelCommand) bodies.get(b).get(0)).getLabel(), b);
+
+        List<Variable> memory = new ArrayList<>();
+        for (Variable var : variables)
+            if (!registers.containsKey(var) && !function.isLocalVariable(var))
+                memory.add(var);
+
+        List<IRCommand> commands = new ArrayList<>();
+        List<IRCommand> tail = new ArrayList<>();
+        int numBlocks = graph.getNumBlocks();
+        for (int b = 0; b < numBlocks; ++b) {
+            if (!dominators.isReachable(b))
+                continue;
+            List<IRCommand> body = bodies.get(b);
+            IRCommand last = body.get(body.size() - 1);
+            int next = b + 1 < numBlocks ? b + 1 : -1;
+            if (last instanceof ConditionalBranchCommand) {
+                ConditionalBranchCommand branch = (ConditionalBranchCommand) last;
+                commands.addAll(body.subList(0, body.size() - 1));
+                List<IRCommand> taken = copies(b, labels.get(branch.getLabel()), registers, memory);
+                if (taken.isEmpty()) {
+                    commands.add(branch);
+                } else {
+                    String split = "__SPLIT__" + function.getFuncName() + "_" + numSplitEdges++;
+                    commands.add(branch.copy(arg -> arg, arg -> arg, label -> split));
+                    tail.add(new LabelCommand(split));
+                    tail.addAll(taken);
+                    tail.add(new GotoCommand(branch.getLabel()));
+                }
+                if (next != -1)
+                    commands.addAll(copies(b, next, registers, memory));
+            } else if (last instanceof GotoCommand) {
+                commands.addAll(body.subList(0, body.size() - 1));
+                commands.addAll(copies(b, labels.get(((GotoCommand) last).getLabel()), registers, memory));
+                commands.add(last);
+            } else {
+                commands.addAll(body);
+                if (!(last instanceof ReturnCommand) && next != -1)
+                    commands.addAll(copies(b, next, registers, memory));
+            }
+        }
+        if (!tail.isEmpty()) {
+            IRCommand last = commands.get(commands.size() - 1);
+            if (!(last instanceof GotoCommand) && !(last instanceof ReturnCommand))
+                commands.add(new ReturnCommand());
+            commands.addAll(tail);
+        }
+        return function.rebuild(commands, memory);
+    }
+
+    // the phis of a block read all of their arguments before any of them is written: copies into memory go
+    // first, register to register moves are ordered so no source is overwritten before it is read, with a
+    // cycle broken through a temporary in memory, and loads from memory or constants come last
+    private List<IRCommand> copies(int pred, Integer block, Map<Variable, Register> registers, List<Variable> memory) {
+        List<IRCommand> sequence = new ArrayList<>();
+        if (block == null || phis.get(block).isEmpty())
+            return sequence;
+        int edge = getPredecessorIndex(block, pred);
+        if (edge == -1)
+            return sequence;
+
+        List<Variable[]> moves = new ArrayList<>();
+        List<AssignmentCommand> late = new ArrayList<>();
+        for (PhiCommand phi : phis.get(block)) {
+            Variable dest = phi.getDest();
+            Argument src = phi.getArg(edge);
+            if (dest.equals(src))
+                continue;
+            Register destRegister = registers.get(dest);
+            Register srcRegister = src instanceof Variable ? registers.get(src) : null;
+            if (destRegister == null)
+                sequence.add(new AssignmentCommand(dest, src));
+            else if (srcRegister == null)
+                late.add(new AssignmentCommand(dest, src));
+            else if (!destRegister.equals(srcRegister))
+                moves.add(new Variable[]{dest, (Variable) src});
+        }
+
+        while (!moves.isEmpty()) {
+            Variable[] ready = null;
+            for (Variable[] move : moves) {
+                Register target = registers.get(move[0]);
+                boolean blocked = false;
+                for (Variable[] other : moves)
+                    if (other != move && registers.get(other[1]).equals(target)) {
+                        blocked = true;
+                        break;
+                    }
+                if (!blocked) {
+                    ready = move;
+                    break;
+                }
+            }
+            if (ready != null) {
+                sequence.add(new AssignmentCommand(ready[0], ready[1]));
+                moves.remove(ready);
+                continue;
+            }
+            Variable[] move = moves.remove(0);
+            Variable temp = new Variable("__ssa_temp" + memory.size(), move[1].getType());
+            memory.add(temp);
+            sequence.add(new AssignmentCommand(temp, move[1]));
+            late.add(new AssignmentCommand(move[0], temp));
+        }
+        sequence.addAll(late);
+        numCopies += sequence.size();
+        return sequence;
+    }
+}
@@ -0,0 +1,40 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class Statistics {
+    // per function counters reported by the optimization passes, kept in the order they were first seen
+    private final Map<String, Map<String, Integer>> counters;
+
+    public Statistics(){
+        counters = new LinkedHashMap<>();
+    }
+
+    public void add(String funcName, String counter, int value){
+        counters.computeIfAbsent(funcName, k -> new LinkedHashMap<>()).merge(counter, value, Integer::sum);
+    }
+
+    public int get(String funcName, String counter){
+        return counters.getOrDefault(funcName, Map.of()).getOrDefault(counter, 0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for(var func: counters.entrySet()){
+            builder.append("Function Start - ").append(func.getKey()).append(":\n");
+            for(var counter: func.getValue().entrySet())
+                builder.append(counter.getKey()).append(": ").append(counter.getValue()).append("\n");
+            builder.append("Function End - ").append(func.getKey()).append("\n\n");
+        }
+        return builder.toString();
+    }
+
+    public void toFile(String path) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(path));
+        writer.append(this.toString());
+        writer.flush();
+    }
+}
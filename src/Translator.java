@@ -1,16 +1,23 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class Translator {
 
+    // no command needs more scratch registers than these at once, the other caller saved registers are
+    // left to the allocators
     final static List<Register> intTempRegisters = Stream
-            .of("t0", "t1", "t2", "t3", "t4", "t5", "t6", "t7", "t8", "t9")
+            .of("t0", "t1", "t2", "t3", "t4", "t5")
             .map(s -> new Register(s, Type.Integer)).collect(Collectors.toList());
 
     final static List<Register> floatTempRegisters = Stream
-            .of("f4", "f6", "f8", "f10", "f16", "f18")
+            .of("f4", "f6", "f8", "f10")
             .map(s -> new Register(s, Type.Float)).collect(Collectors.toList());
 
     final static Register SP = new Register("sp", Type.Integer);
@@ -18,17 +25,42 @@ public class Translator {
     final static Register RA = new Register("ra", Type.Integer);
     final static Register RETURN_INT = new Register("v0", Type.Integer);
     final static Register RETURN_FLOAT = new Register("f0", Type.Integer);
+    final static Register ZERO = new Register("zero", Type.Integer);
+    // kept from the allocators, instrumented code counts blocks through them without disturbing anything
+    final static Register K0 = new Register("k0", Type.Integer);
+    final static Register K1 = new Register("k1", Type.Integer);
+
+    // operands of the immediate instructions: addiu sign extends 16 bits, andi and ori zero extend them
+    final static int MIN_SIGNED_IMMEDIATE = -(1 << 15);
+    final static int MAX_SIGNED_IMMEDIATE = (1 << 15) - 1;
+    final static int MAX_UNSIGNED_IMMEDIATE = (1 << 16) - 1;
+
+    private final static Map<String, String> MIRRORED_BRANCHES = Map.of(
+            "breq", "breq", "brneq", "brneq", "brlt", "brgt", "brgt", "brlt", "brleq", "brgeq", "brgeq", "brleq");
 
     private final RegisterMemory savedIntTempMemory;
     private final RegisterMemory savedFloatTempMemory;
     private Integer tempVariableCounter;
     private final RegisterAllocator registerAllocator;
+    private List<Register> savedIntRegisters;
+    private List<Register> savedFloatRegisters;
+    private LiveSet liveSet;
+    // an instrumented program counts every block it runs and prints the counts as it exits, the function
+    // and block id of every counter in the order they are laid out
+    private final boolean instrument;
+    private final List<String[]> counters;
 
 
     public Translator(RegisterAllocator registerAllocator){
+        this(registerAllocator, false);
+    }
+
+    public Translator(RegisterAllocator registerAllocator, boolean instrument){
         this.savedIntTempMemory = new RegisterMemory(intTempRegisters);
         this.savedFloatTempMemory = new RegisterMemory(floatTempRegisters);
         this.registerAllocator = registerAllocator;
+        this.instrument = instrument;
+        this.counters = new ArrayList<>();
         tempVariableCounter = 0;
     }
 
@@ -40,6 +72,10 @@ public class Translator {
         return "__EXIT__" + func.getFuncName();
     }
 
+    public String getFunctionBodyLabel(Function func) {
+        return "__BODY__" + func.getFuncName();
+    }
+
     public Register load(Variable var){
         if(var.getType().equals(Type.Float))
              if(savedFloatTempMemory.declareVariable(var))
@@ -72,11 +108,114 @@ public class Translator {
                 else
                     commandList.add(new DataTypeMIPSCommand(add.getValue().getName(),  "word", "0"));
         }
+        // the counters go after the globals, the names they are printed with leave the data unaligned
+        int dataEnd = commandList.size();
         commandList.add(new AssemblerDirectiveCommand("text"));
         commandList.add(new AssemblerDirectiveCommand("globl", List.of("main")));
-        for(var func: c.getFunctions().values()){
-            commandList.addAll(translate(func));
+        // callees are translated before their callers, so the allocators know which registers each call
+        // overwrites, and framed once every caller is known, so only the callee saved registers some caller
+        // may rely on are kept
+        CallGraph callGraph = new CallGraph(c);
+        registerAllocator.setCallGraph(callGraph);
+        Map<String, Function> prepared = new HashMap<>();
+        Map<String, List<MIPSCommand>> bodies = new HashMap<>();
+        for(String name: callGraph.getBottomUpOrder()){
+            Function f = registerAllocator.prepare(c.getFunctions().get(name));
+            List<MIPSCommand> body = translateBody(f);
+            callGraph.setWritten(name, getWrittenRegisters(body));
+            prepared.put(name, f);
+            bodies.put(name, body);
+        }
+        for(String name: c.getFunctions().keySet())
+            commandList.addAll(frame(prepared.get(name), bodies.get(name), callGraph.getPreserved(name)));
+        registerAllocator.setCallGraph(null);
+        if(instrument){
+            commandList.addAll(dataEnd, getCounterData());
+            commandList.addAll(getDumpRoutine());
+        }
+        return commandList;
+    }
+
+    private static DataAddress getCounterArray(){
+        return new DataAddress("__PROFILE__", Type.Integer);
+    }
+
+    private static String getDumpLabel(){
+        return "__PROFILE_DUMP__";
+    }
+
+    private static DataAddress getCounterName(int k){
+        return new DataAddress("__PROFILE_NAME__" + k, Type.Integer);
+    }
+
+    private List<MIPSCommand> getCounterData(){
+        List<MIPSCommand> commandList = new LinkedList<>();
+        commandList.add(new DataTypeMIPSCommand(getCounterArray().getName(), "space", String.valueOf(4 * counters.size())));
+        for(int k = 0; k < counters.size(); ++k)
+            commandList.add(new DataTypeMIPSCommand(getCounterName(k).getName(), "asciiz",
+                    "\"" + Profile.PREFIX + " " + counters.get(k)[0] + " " + counters.get(k)[1] + " \""));
+        return commandList;
+    }
+
+    // one counter for every block holding more than labels, bumped before its first other command
+    private Map<Integer, Integer> getCounters(Function f){
+        Map<Integer, Integer> counted = new HashMap<>();
+        BasicBlocks graph = f.getControlFlowGraph();
+        String[] ids = Profile.getBlockIds(f);
+        for(int b = 0; b < graph.getNumBlocks(); ++b){
+            int first = graph.getFirstCommand(b);
+            while(first <= graph.getLastCommand(b) && f.getCommand(first) instanceof LabelCommand)
+                ++first;
+            if(first > graph.getLastCommand(b))
+                continue;
+            counted.put(first, counters.size());
+            counters.add(new String[]{f.getFuncName(), ids[b]});
         }
+        return counted;
+    }
+
+    private static List<MIPSCommand> count(int k){
+        List<MIPSCommand> commandList = new LinkedList<>();
+        commandList.add(new LoadLabelAddressCommand(K1, getCounterArray()));
+        commandList.add(new LoadMIPSCommand(K0, new Address(K1, 4 * k), false));
+        commandList.add(new BinaryImmediateMIPSCommand(K0, K0, new Constant("1"), BinaryOperator.ADD));
+        commandList.add(new StoreMIPSCommand(K0, new Address(K1, 4 * k), false));
+        return commandList;
+    }
+
+    // ra is kept in k1 across the call, the routine preserves everything else
+    private List<MIPSCommand> dump(){
+        List<MIPSCommand> commandList = new LinkedList<>();
+        commandList.add(new MoveMIPSCommand(K1, RA, false));
+        commandList.add(new CallMIPSCommand(getDumpLabel()));
+        commandList.add(new MoveMIPSCommand(RA, K1, false));
+        return commandList;
+    }
+
+    // prints a line with the function, block id and count of every counter
+    private List<MIPSCommand> getDumpRoutine(){
+        Register a0 = new Register("a0", Type.Integer);
+        List<MIPSCommand> commandList = new LinkedList<>();
+        commandList.add(new LabelMIPSCommand(getDumpLabel()));
+        commandList.add(new BinaryImmediateMIPSCommand(SP, SP, new Constant("-8"), BinaryOperator.ADD));
+        commandList.add(new StoreMIPSCommand(a0, new Address(SP, 0), false));
+        commandList.add(new StoreMIPSCommand(RETURN_INT, new Address(SP, 4), false));
+        commandList.add(new LoadLabelAddressCommand(K0, getCounterArray()));
+        for(int k = 0; k < counters.size(); ++k){
+            commandList.add(new LoadLabelAddressCommand(a0, getCounterName(k)));
+            commandList.add(new LoadIntCommand(RETURN_INT, new Constant("4")));
+            commandList.add(new SystemMIPSCommand());
+            commandList.add(new LoadMIPSCommand(a0, new Address(K0, 4 * k), false));
+            commandList.add(new LoadIntCommand(RETURN_INT, new Constant("1")));
+            commandList.add(new SystemMIPSCommand());
+            commandList.add(new LoadIntCommand(a0, new Constant("10")));
+            commandList.add(new LoadIntCommand(RETURN_INT, new Constant("11")));
+            commandList.add(new SystemMIPSCommand());
+        }
+        commandList.add(new LoadMIPSCommand(a0, new Address(SP, 0), false));
+        commandList.add(new LoadMIPSCommand(RETURN_INT, new Address(SP, 4), false));
+        commandList.add(new BinaryImmediateMIPSCommand(SP, SP, new Constant("8"), BinaryOperator.ADD));
+        commandList.add(new ReturnMIPSCommand(RA));
         return commandList;
     }
     
@@ -84,80 +223,172 @@ public class Translator {
         List<MIPSCommand> commandList= new LinkedList<>();
         commandList.add(new CommentMIPSCommand("PROLOG"));
         int argStorage = f.getMaxArgumentSize();
-        int savedRegister = RegisterAllocator.intSavedRegisters.size() * 4 + RegisterAllocator.floatSavedRegisters.size() * 8;
         int returnAddress = 4;
         int frameRegister = 4;
-        int stackSize = argStorage + savedRegister + returnAddress + f.getLocalMemorySize() + frameRegister;
+        int stackSize = getStackSize(f);
 
-        Variable temp = getTempVariable(Type.Integer);
-        Register tempReg = load(temp);
-        commandList.add(new MoveMIPSCommand(tempReg, SP, false));
+        if(!f.isLeaf()) {
+            Variable temp = getTempVariable(Type.Integer);
+            Register tempReg = load(temp);
+            commandList.add(new MoveMIPSCommand(tempReg, SP, false));
 
-        commandList.add(new BinaryImmediateMIPSCommand(SP, SP, new Constant(String.valueOf(-stackSize)), BinaryOperator.ADD));
-        commandList.add(new StoreMIPSCommand(RA, new Address(SP, stackSize - returnAddress), false));
-        commandList.add(new StoreMIPSCommand(FP, new Address(SP, stackSize - returnAddress - frameRegister), false));
+            commandList.add(new BinaryImmediateMIPSCommand(SP, SP, new Constant(String.valueOf(-stackSize)), BinaryOperator.ADD));
+            commandList.add(new StoreMIPSCommand(RA, new Address(SP, stackSize - returnAddress), false));
+            commandList.add(new StoreMIPSCommand(FP, new Address(SP, stackSize - returnAddress - frameRegister), false));
 
-        commandList.add(new MoveMIPSCommand(FP, tempReg, false));
-        store(temp);
+            commandList.add(new MoveMIPSCommand(FP, tempReg, false));
+            store(temp);
+        } else if(stackSize > 0) {
+            commandList.add(new BinaryImmediateMIPSCommand(SP, SP, new Constant(String.valueOf(-stackSize)), BinaryOperator.ADD));
+        }
 
-        for(int i = 0; i < RegisterAllocator.intSavedRegisters.size(); ++i){
-            commandList.add(new StoreMIPSCommand(RegisterAllocator.intSavedRegisters.get(i),
+        for(int i = 0; i < savedIntRegisters.size(); ++i){
+            commandList.add(new StoreMIPSCommand(savedIntRegisters.get(i),
                                                  new Address(SP, argStorage + f.getLocalMemorySize() + i * 4), false));
         }
 
-        for(int i = 0; i < RegisterAllocator.floatSavedRegisters.size(); ++i){
-            commandList.add(new StoreMIPSCommand(RegisterAllocator.floatSavedRegisters.get(i),
+        for(int i = 0; i < savedFloatRegisters.size(); ++i){
+            commandList.add(new StoreMIPSCommand(savedFloatRegisters.get(i),
                                                  new Address(SP, argStorage + f.getLocalMemorySize()
-                                                         + i * 8 + RegisterAllocator.intSavedRegisters.size() * 4),
+                                                         + i * 8 + savedIntRegisters.size() * 4),
                                                  true));
         }
         return commandList;
     }
 
     public List<MIPSCommand> translate(Function f){
-        List<MIPSCommand> commandList= new LinkedList<>();
+        f = registerAllocator.prepare(f);
+        return frame(f, translateBody(f), null);
+    }
+
+    private List<MIPSCommand> translateBody(Function f){
         registerAllocator.reset(f);
+        liveSet = new LiveSet(f);
+        List<MIPSCommand> body = new LinkedList<>();
+        Map<Integer, Integer> counted = instrument ? getCounters(f) : Map.of();
+        for(int i = 1; i < f.getNumCommands(); ++i)
+            if(f.isTailCall(i) && ((CallCommand) f.getCommand(i)).getFunc().equals(f.getFuncName())){
+                body.add(new LabelMIPSCommand(getFunctionBodyLabel(f)));
+                break;
+            }
+        for(int i = 1; i < f.getNumCommands(); ++i){
+            body.add(new CommentMIPSCommand(f.getCommand(i).toString()));
+            if(counted.containsKey(i))
+                body.addAll(count(counted.get(i)));
+            if(f.isTailCall(i)){
+                body.addAll(translateTailCall((CallCommand) f.getCommand(i), f));
+                // the return is never reached, the allocator still steps over it
+                registerAllocator.enterCommand(f.getCommand(++i));
+                registerAllocator.exitCommand(f.getCommand(i));
+                continue;
+            }
+            body.addAll(translate(f.getCommand(i), f));
+        }
+        return body;
+    }
+
+    // the frame is laid out once the body is known, only the callee saved registers it writes get a slot,
+    // and of those only the preserved ones when the callers are known
+    private List<MIPSCommand> frame(Function f, List<MIPSCommand> body, Set<String> preserved){
+        List<MIPSCommand> commandList= new LinkedList<>();
+        Set<String> written = getWrittenRegisters(body);
+        if(preserved != null)
+            written.retainAll(preserved);
+        savedIntRegisters = RegisterAllocator.intSavedRegisters.stream().filter(r -> written.contains(r.getName())).collect(Collectors.toList());
+        savedFloatRegisters = RegisterAllocator.floatSavedRegisters.stream().filter(r -> written.contains(r.getName())).collect(Collectors.toList());
+        if(f.isLeaf())
+            body = rebaseArguments(body, getStackSize(f));
         commandList.add(new LabelMIPSCommand(f.getFuncName()));
         commandList.addAll(prolog(f));
-        for(int i = 1; i < f.getNumCommands(); ++i){
-            commandList.add(new CommentMIPSCommand(f.getCommand(i).toString()));
-            commandList.addAll(translate(f.getCommand(i), f));
+        for(MIPSCommand command: body){
+            if(command instanceof TailCallMIPSCommand)
+                commandList.addAll(restore(f));
+            commandList.add(command);
         }
         commandList.addAll(epilogue(f));
         return commandList;
     }
 
+    private static Set<String> getWrittenRegisters(List<MIPSCommand> body){
+        Set<String> written = new HashSet<>();
+        for(MIPSCommand command: body)
+            for(Register register: command.getDefs())
+                written.add(register.getName());
+        return written;
+    }
+
+    // a leaf saves neither ra nor fp and has no outgoing argument area, without spills or saved registers
+    // it doesn't move sp at all
+    private int getStackSize(Function f){
+        int argStorage = f.getMaxArgumentSize();
+        int savedRegister = savedIntRegisters.size() * 4 + savedFloatRegisters.size() * 8;
+        int returnAddress = 4;
+        int frameRegister = 4;
+        if(f.isLeaf())
+            return savedRegister + f.getLocalMemorySize();
+        return argStorage + savedRegister + returnAddress + f.getLocalMemorySize() + frameRegister;
+    }
+
+    // a leaf keeps its caller's fp, so the argument slots above its frame are reached from sp instead
+    private static List<MIPSCommand> rebaseArguments(List<MIPSCommand> body, int stackSize){
+        List<MIPSCommand> commandList = new LinkedList<>();
+        for(MIPSCommand command: body){
+            if(command instanceof LoadMIPSCommand load && isFrameAddress(load.getOrigin()))
+                command = new LoadMIPSCommand(load.getDest(), rebase((Address) load.getOrigin(), stackSize), load.isFloat());
+            else if(command instanceof StoreMIPSCommand store && isFrameAddress(store.getDest()))
+                command = new StoreMIPSCommand(store.getOrigin(), rebase((Address) store.getDest(), stackSize), store.isFloat());
+            commandList.add(command);
+        }
+        return commandList;
+    }
+
+    private static boolean isFrameAddress(Variable address){
+        return address instanceof Address && ((Address) address).getStart().getName().equals(FP.getName());
+    }
+
+    private static Address rebase(Address address, int stackSize){
+        return new Address(SP, address.getOffset() + stackSize);
+    }
+
     private List<MIPSCommand> epilogue(Function f){
         List<MIPSCommand> commandList= new LinkedList<>();
         commandList.add(new CommentMIPSCommand("EPILOGUE"));
         commandList.add(new LabelMIPSCommand(getFunctionExitLabel(f)));
+        if(instrument && f.getFuncName().equals("main"))
+            commandList.addAll(dump());
+        commandList.addAll(restore(f));
+        commandList.add(new ReturnMIPSCommand(RA));
+        return commandList;
+    }
 
+    // everything the prolog saved is loaded back and the frame popped, also done before every tail call
+    private List<MIPSCommand> restore(Function f){
+        List<MIPSCommand> commandList= new LinkedList<>();
         int argStorage = f.getMaxArgumentSize();
-        int savedRegister = RegisterAllocator.intSavedRegisters.size() * 4 + RegisterAllocator.floatSavedRegisters.size() * 8;
         int returnAddress = 4;
         int frameRegister = 4;
-        int stackSize = argStorage + savedRegister + returnAddress + f.getLocalMemorySize() + frameRegister;
-
+        int stackSize = getStackSize(f);
 
-        commandList.add(new LoadMIPSCommand(RA, new Address(SP, stackSize - returnAddress), false));
-        commandList.add(new LoadMIPSCommand(FP, new Address(SP, stackSize - returnAddress - frameRegister), false));
+        if(!f.isLeaf()) {
+            commandList.add(new LoadMIPSCommand(RA, new Address(SP, stackSize - returnAddress), false));
+            commandList.add(new LoadMIPSCommand(FP, new Address(SP, stackSize - returnAddress - frameRegister), false));
+        }
 
 
-        for(int i = 0; i < RegisterAllocator.intSavedRegisters.size(); ++i){
-            commandList.add(new LoadMIPSCommand(RegisterAllocator.intSavedRegisters.get(i),
+        for(int i = 0; i < savedIntRegisters.size(); ++i){
+            commandList.add(new LoadMIPSCommand(savedIntRegisters.get(i),
                                                  new Address(SP, argStorage + f.getLocalMemorySize() + i * 4), false));
         }
 
-        for(int i = 0; i < RegisterAllocator.floatSavedRegisters.size(); ++i){
-            commandList.add(new LoadMIPSCommand(RegisterAllocator.floatSavedRegisters.get(i),
+        for(int i = 0; i < savedFloatRegisters.size(); ++i){
+            commandList.add(new LoadMIPSCommand(savedFloatRegisters.get(i),
                                                  new Address(SP, argStorage + f.getLocalMemorySize()
-                                                         + i * 8 + RegisterAllocator.intSavedRegisters.size() * 4),
+                                                         + i * 8 + savedIntRegisters.size() * 4),
                                                  true));
         }
 
-        commandList.add(new BinaryImmediateMIPSCommand(SP, SP, new Constant(String.valueOf(stackSize)), BinaryOperator.ADD));
-        commandList.add(new ReturnMIPSCommand(RA));
-
+        if(stackSize > 0)
+            commandList.add(new BinaryImmediateMIPSCommand(SP, SP, new Constant(String.valueOf(stackSize)), BinaryOperator.ADD));
         return commandList;
     }
 
@@ -166,6 +397,10 @@ public class Translator {
             return translateBinaryCommand((BinaryOperatorCommand) command);
         if(command instanceof ConditionalBranchCommand)
             return translateBranchCommand((ConditionalBranchCommand) command);
+        if(command instanceof CompareCommand)
+            return translateCompareCommand((CompareCommand) command);
+        if(command instanceof SelectCommand)
+            return translateSelectCommand((SelectCommand) command);
         if(command instanceof GotoCommand)
             return translateJumpCommand((GotoCommand) command);
         if(command instanceof LabelCommand)
@@ -230,10 +465,11 @@ public class Translator {
             }
             tempSizeVar = getTempVariable(Type.Integer);
             Register sizeVar = load(tempSizeVar);
-            commandList.add(new LoadIntCommand(sizeVar, new Constant("4")));
-            commandList.add(new BinaryMIPSCommand(index, index, sizeVar, BinaryOperator.MUL, false)); // index = index * 4
-            commandList.add(new BinaryMIPSCommand(index, index, arrayAddress.getStart(), BinaryOperator.ADD,false)); // index = base + index
-            arrayAddress = new Address(index, arrayAddress.getOffset());
+            // the address is built in the temporary, the index variable keeps its value
+            int scale = Integer.numberOfTrailingZeros(array.getType().getSize());
+            commandList.add(new ShiftMIPSCommand(sizeVar, index, scale, "sll")); // temp = index * 4
+            commandList.add(new BinaryMIPSCommand(sizeVar, sizeVar, arrayAddress.getStart(), BinaryOperator.ADD,false)); // temp = base + temp
+            arrayAddress = new Address(sizeVar, arrayAddress.getOffset());
         }
 
         Argument value = command.getValue();
@@ -304,10 +540,11 @@ public class Translator {
             }
             tempSizeVar = getTempVariable(Type.Integer);
             Register sizeVar = load(tempSizeVar);
-            commandList.add(new LoadIntCommand(sizeVar, new Constant("4")));
-            commandList.add(new BinaryMIPSCommand(index, index, sizeVar, BinaryOperator.MUL, false)); // index = index * 4
-            commandList.add(new BinaryMIPSCommand(index, index, arrayAddress.getStart(), BinaryOperator.ADD,false)); // index = base + index
-            arrayAddress = new Address(index, arrayAddress.getOffset());
+            // the address is built in the temporary, the index variable keeps its value
+            int scale = Integer.numberOfTrailingZeros(array.getType().getSize());
+            commandList.add(new ShiftMIPSCommand(sizeVar, index, scale, "sll")); // temp = index * 4
+            commandList.add(new BinaryMIPSCommand(sizeVar, sizeVar, arrayAddress.getStart(), BinaryOperator.ADD,false)); // temp = base + temp
+            arrayAddress = new Address(sizeVar, arrayAddress.getOffset());
         }
         Register variable = registerAllocator.getRegister(command.getVar());
 
@@ -380,7 +617,9 @@ public class Translator {
                     new IntToFloatCommand(a, bRegister));
         } else {
             Register bRegister = registerAllocator.getRegister((Variable)b);
-            commandList.add(new MoveMIPSCommand(a, bRegister, a.getType().equals(Type.Float)));
+            // copies coalesced by the allocator end up in the same register
+            if (!a.equals(bRegister))
+                commandList.add(new MoveMIPSCommand(a, bRegister, a.getType().equals(Type.Float)));
         }
 
         return commandList;
@@ -511,37 +750,48 @@ public class Translator {
 
 
 
-    private List<MIPSCommand> functionCall(CallCommand command, Function f) {
+    private List<MIPSCommand> functionCall(CallCommand command, Function f, Map<Variable, Register> preserved) {
         List<MIPSCommand> commandList = new LinkedList<>(registerAllocator.enterCommand(command));
+        for(var arg: preserved.entrySet())
+            commandList.add(new StoreMIPSCommand(arg.getValue(), f.getLocalAddress(arg.getKey()), arg.getKey().getType().equals(Type.Float)));
+
+        // stack passed arguments are stored first, the argument registers are filled afterwards in one go
+        // since their values may still sit in this function's own argument registers
+        List<Register> destinations = new ArrayList<>();
+        List<Argument> sources = new ArrayList<>();
         int offset = 0, numInt = 0, numFloat = 0;
         for(int i = 0; i < command.getArgs().size(); ++i){
-            Variable  arg;
-            Register r;
-            if (command.getArgs().get(i) instanceof Constant constant){
-                arg = getTempVariable(constant.getType());
-                r = load(arg);
-                commandList.add(constant.getType().equals(Type.Float) ?
-                                        new LoadFloatCommand(r, constant) :
-                                        new LoadIntCommand(r, constant));
-            }else {
-                arg = (Variable) command.getArgs().get(i);
-                r = registerAllocator.getRegister(arg);
-                if(r == null) {
+            Argument argument = command.getArgs().get(i);
+            if(argument.getType().equals(Type.Float) && numFloat < 2){
+                destinations.add(new Register("f" + ((2 * numFloat++) + 12), Type.Float));
+                sources.add(argument);
+            } else if(argument.getType().equals(Type.Integer) && numInt < 4){
+                destinations.add(new Register("a" + numInt++,  Type.Integer));
+                sources.add(argument);
+            } else {
+                Variable  arg;
+                Register r;
+                if (argument instanceof Constant constant){
+                    arg = getTempVariable(constant.getType());
                     r = load(arg);
-                    commandList.add(new LoadMIPSCommand(r, f.getAddress(arg), r.getType().equals(Type.Float)));
+                    commandList.add(constant.getType().equals(Type.Float) ?
+                                            new LoadFloatCommand(r, constant) :
+                                            new LoadIntCommand(r, constant));
+                }else {
+                    arg = (Variable) argument;
+                    r = registerAllocator.getRegister(arg);
+                    if(r == null) {
+                        r = load(arg);
+                        commandList.add(new LoadMIPSCommand(r, f.getAddress(arg), r.getType().equals(Type.Float)));
+                    }
                 }
+                commandList.add(new StoreMIPSCommand(r, new Address(SP, offset), arg.getType().equals(Type.Float)));
+                store(arg);
             }
-
-            commandList.add(new StoreMIPSCommand(r, new Address(SP, offset), arg.getType().equals(Type.Float)));
-
-            if(arg.getType().equals(Type.Float) && numFloat < 2){
-                commandList.add(new MoveMIPSCommand(new Register("f" + ((2 * numFloat++) + 12), Type.Float), r, true));
-            } else if(arg.getType().equals(Type.Integer) && numInt < 4){
-                commandList.add(new MoveMIPSCommand(new Register("a" + numInt++,  Type.Integer), r, false));
-            }
-            offset += arg.getSize();
-            store(arg);
+            offset += argument instanceof Variable var ? var.getSize() : argument.getType().getSize();
         }
+        commandList.addAll(moveArguments(destinations, sources, f));
+
         switch (command.getFunc()) {
             case "printi" -> {
                 commandList.add(new LoadIntCommand(RETURN_INT, new Constant("1")));
@@ -562,6 +812,8 @@ public class Translator {
                 commandList.add(new SystemMIPSCommand());
             }
             case "exit" -> {
+                if(instrument)
+                    commandList.addAll(dump());
                 commandList.add(new LoadIntCommand(RETURN_INT, new Constant("17")));
                 commandList.add(new SystemMIPSCommand());
             }
@@ -573,17 +825,87 @@ public class Translator {
         }
         return commandList;
     }
+    // the argument registers as one parallel copy: register to register moves go first, each once no other
+    // pending move still reads its destination, with cycles broken through a scratch register, then the
+    // constants and the arguments that live in memory are loaded straight into place
+    private List<MIPSCommand> moveArguments(List<Register> destinations, List<Argument> sources, Function f){
+        List<MIPSCommand> commandList = new LinkedList<>();
+        List<Register[]> moves = new ArrayList<>();
+        List<Integer> loads = new ArrayList<>();
+        for(int i = 0; i < destinations.size(); ++i){
+            Register r = sources.get(i) instanceof Variable var ? registerAllocator.getRegister(var) : null;
+            if(r == null)
+                loads.add(i);
+            else if(!r.getName().equals(destinations.get(i).getName()))
+                moves.add(new Register[]{destinations.get(i), r});
+        }
+        List<Variable> temps = new ArrayList<>();
+        while(!moves.isEmpty()){
+            Register[] ready = null;
+            for(Register[] move: moves)
+                if(moves.stream().noneMatch(m -> m[1].getName().equals(move[0].getName()))){
+                    ready = move;
+                    break;
+                }
+            if(ready == null){
+                Register blocked = moves.get(0)[0];
+                Variable temp = getTempVariable(blocked.getType());
+                Register tempReg = load(temp);
+                temps.add(temp);
+                commandList.add(new MoveMIPSCommand(tempReg, blocked, blocked.getType().equals(Type.Float)));
+                for(Register[] move: moves)
+                    if(move[1].getName().equals(blocked.getName()))
+                        move[1] = tempReg;
+                continue;
+            }
+            commandList.add(new MoveMIPSCommand(ready[0], ready[1], ready[0].getType().equals(Type.Float)));
+            moves.remove(ready);
+        }
+        for(Variable temp: temps)
+            store(temp);
+        for(int i: loads){
+            Register dest = destinations.get(i);
+            boolean isFloat = dest.getType().equals(Type.Float);
+            if(sources.get(i) instanceof Constant constant)
+                commandList.add(isFloat ? new LoadFloatCommand(dest, constant) : new LoadIntCommand(dest, constant));
+            else
+                commandList.add(new LoadMIPSCommand(dest, f.getAddress((Variable) sources.get(i)), isFloat));
+        }
+        return commandList;
+    }
+
+    // the arguments go straight into the callee's argument registers, then a call to the function itself jumps
+    // back to the top of its body and any other call jumps to the callee once frame() has popped this frame,
+    // the callee then returns to this function's caller
+    private List<MIPSCommand> translateTailCall(CallCommand command, Function f){
+        List<MIPSCommand> commandList = new LinkedList<>(registerAllocator.enterCommand(command));
+        List<Register> destinations = new ArrayList<>();
+        int numInt = 0, numFloat = 0;
+        for(Argument argument: command.getArgs())
+            destinations.add(argument.getType().equals(Type.Float) ? Function.floatArgumentRegisters.get(numFloat++)
+                                                                   : Function.intArgumentRegisters.get(numInt++));
+        commandList.addAll(moveArguments(destinations, command.getArgs(), f));
+        registerAllocator.exitCommand(command);
+        if(command.getFunc().equals(f.getFuncName()))
+            commandList.add(new JumpMIPSCommand(getFunctionBodyLabel(f)));
+        else
+            commandList.add(new TailCallMIPSCommand(command.getFunc(), destinations));
+        return commandList;
+    }
+
     private List<MIPSCommand> translateCallCommand(CallCommand command, Function f){
-        List<MIPSCommand> commandList =  functionCall(command, f);
-        commandList.addAll(functionExit(f));
+        Map<Variable, Register> preserved = getPreservedArguments(command, f);
+        List<MIPSCommand> commandList =  functionCall(command, f, preserved);
+        commandList.addAll(reloadArguments(preserved, f));
         commandList.addAll(registerAllocator.exitCommand(command));
         return commandList;
     }
 
     private List<MIPSCommand> translateCallRCommand(CallRCommand command, Function f){
-        List<MIPSCommand> commandList = functionCall(command, f);
+        Map<Variable, Register> preserved = getPreservedArguments(command, f);
+        List<MIPSCommand> commandList = functionCall(command, f, preserved);
         Variable var = (Variable) command.getVar();
-        commandList.addAll(functionExit(f));
+        commandList.addAll(reloadArguments(preserved, f));
         if(var.getType().equals(Type.Float))
             commandList.add(new MoveMIPSCommand(registerAllocator.getRegister(var), RETURN_FLOAT, true));
         else
@@ -592,16 +914,26 @@ public class Translator {
         return commandList;
     }
 
-    private List<MIPSCommand> functionExit(Function f){
+    // this function's own register arguments that the call overwrites and that are read after it, they are
+    // stored to their slots in the caller's argument area before the call and loaded back after it
+    private Map<Variable, Register> getPreservedArguments(CallCommand command, Function f){
+        Set<Variable> live = liveSet.getOutSet(command.getPosition());
+        Map<Variable, Register> preserved = new HashMap<>();
+        for(var arguments: List.of(f.getIntArguments(), f.getFloatArguments()))
+            for(var arg: arguments.entrySet())
+                if(live.contains(arg.getKey()) && !command.getDecl().contains(arg.getKey()) && clobbers(command, arg.getValue()))
+                    preserved.put(arg.getKey(), arg.getValue());
+        return preserved;
+    }
+
+    private boolean clobbers(CallCommand command, Register r){
+        return registerAllocator.getClobbers(command).contains(r.getName());
+    }
+
+    private List<MIPSCommand> reloadArguments(Map<Variable, Register> preserved, Function f){
         List<MIPSCommand> commandList = new LinkedList<>();
-        var intArguments = f.getIntArguments();
-        var floatArguments = f.getFloatArguments();
-        for(var arg: intArguments.entrySet()){
-            commandList.add(new LoadMIPSCommand(arg.getValue(), f.getLocalAddress(arg.getKey()), false));
-        }
-        for(var arg: floatArguments.entrySet()){
-            commandList.add(new LoadMIPSCommand(arg.getValue(), f.getLocalAddress(arg.getKey()), true));
-        }
+        for(var arg: preserved.entrySet())
+            commandList.add(new LoadMIPSCommand(arg.getValue(), f.getLocalAddress(arg.getKey()), arg.getKey().getType().equals(Type.Float)));
         return commandList;
     }
 
@@ -614,6 +946,25 @@ public class Translator {
         Register a, b;
         Variable aTempVar = null;
 
+        // integer comparisons take a small constant as the second operand, zero is read from $zero
+        String branch = command.getBranchCommand();
+        if (aVar instanceof Constant && bVar instanceof Variable && bVar.getType().equals(Type.Integer)) {
+            Argument temp = aVar;
+            aVar = bVar;
+            bVar = temp;
+            branch = MIRRORED_BRANCHES.get(branch);
+        }
+        if (aVar instanceof Variable && aVar.getType().equals(Type.Integer) && bVar instanceof Constant
+                && fitsImmediate((Constant) bVar, MIN_SIGNED_IMMEDIATE, MAX_SIGNED_IMMEDIATE)) {
+            Argument immediate = Long.parseLong(((Constant) bVar).getValue()) == 0 ? ZERO : bVar;
+            commandList.add(new BranchMIPSCommand(registerAllocator.getRegister((Variable) aVar), immediate,
+                                                  command.getLabel(), branch));
+            commandList.addAll(registerAllocator.exitCommand(command));
+            return commandList;
+        }
+        aVar = command.getA();
+        bVar = command.getB();
+
         if (aVar instanceof Constant) {
             aTempVar = getTempVariable(aVar.getType());
             a = load(aTempVar);
@@ -658,6 +1009,193 @@ public class Translator {
         return commandList;
     }
 
+    private List<MIPSCommand> translateCompareCommand(CompareCommand command){
+        List<MIPSCommand> commandList = new LinkedList<>(registerAllocator.enterCommand(command));
+        Argument aVar = command.getA();
+        Argument bVar = command.getB();
+        String condition = command.getCondition();
+        if (aVar instanceof Constant && bVar instanceof Variable) {
+            Argument temp = aVar;
+            aVar = bVar;
+            bVar = temp;
+            condition = MIRRORED_BRANCHES.get(condition);
+        }
+        Register dest = registerAllocator.getRegister(command.getDest());
+        Register a, b;
+        Variable aTempVar = null, bTempVar = null;
+        if (aVar instanceof Constant) {
+            aTempVar = getTempVariable(Type.Integer);
+            a = load(aTempVar);
+            commandList.add(new LoadIntCommand(a, (Constant) aVar));
+        } else {
+            a = registerAllocator.getRegister((Variable) aVar);
+        }
+        List<MIPSCommand> reduced = bVar instanceof Constant constant ? compareWithConstant(dest, a, condition, constant) : null;
+        if (reduced != null) {
+            commandList.addAll(reduced);
+        } else {
+            if (bVar instanceof Constant) {
+                bTempVar = getTempVariable(Type.Integer);
+                b = load(bTempVar);
+                commandList.add(new LoadIntCommand(b, (Constant) bVar));
+            } else {
+                b = registerAllocator.getRegister((Variable) bVar);
+            }
+            commandList.addAll(compare(dest, a, b, condition));
+        }
+        if (bTempVar != null) store(bTempVar);
+        if (aTempVar != null) store(aTempVar);
+        commandList.addAll(registerAllocator.exitCommand(command));
+        return commandList;
+    }
+
+    // slt gives a < b, the other orders swap the operands and the non strict ones flip the result,
+    // equality checks a xor b against zero
+    private static List<MIPSCommand> compare(Register dest, Register a, Register b, String condition) {
+        Constant one = new Constant("1");
+        return switch (condition) {
+            case "brlt" -> List.of(new SetLessThanMIPSCommand(dest, a, b, false));
+            case "brgt" -> List.of(new SetLessThanMIPSCommand(dest, b, a, false));
+            case "brgeq" -> List.of(new SetLessThanMIPSCommand(dest, a, b, false),
+                                    new BinaryImmediateMIPSCommand(dest, dest, one, BinaryOperator.XOR));
+            case "brleq" -> List.of(new SetLessThanMIPSCommand(dest, b, a, false),
+                                    new BinaryImmediateMIPSCommand(dest, dest, one, BinaryOperator.XOR));
+            case "breq" -> List.of(new BinaryMIPSCommand(dest, a, b, BinaryOperator.XOR, false),
+                                   new SetLessThanMIPSCommand(dest, dest, one, true));
+            default -> List.of(new BinaryMIPSCommand(dest, a, b, BinaryOperator.XOR, false),
+                               new SetLessThanMIPSCommand(dest, ZERO, dest, true));
+        };
+    }
+
+    // the same with the constant as an immediate, a <= c is a < c + 1, null when it doesn't fit
+    private static List<MIPSCommand> compareWithConstant(Register dest, Register a, String condition, Constant constant) {
+        Constant one = new Constant("1");
+        long value = Long.parseLong(constant.getValue());
+        if (condition.equals("breq") || condition.equals("brneq")) {
+            if (value < 0 || value > MAX_UNSIGNED_IMMEDIATE)
+                return null;
+            List<MIPSCommand> commandList = new LinkedList<>();
+            Register x = a;
+            if (value != 0) {
+                commandList.add(new BinaryImmediateMIPSCommand(dest, a, constant, BinaryOperator.XOR));
+                x = dest;
+            }
+            commandList.add(condition.equals("breq") ? new SetLessThanMIPSCommand(dest, x, one, true)
+                                                     : new SetLessThanMIPSCommand(dest, ZERO, x, true));
+            return commandList;
+        }
+        if (condition.equals("brleq") || condition.equals("brgt"))
+            ++value;
+        if (value < MIN_SIGNED_IMMEDIATE || value > MAX_SIGNED_IMMEDIATE)
+            return null;
+        Constant immediate = new Constant(String.valueOf(value));
+        if (condition.equals("brlt") || condition.equals("brleq"))
+            return List.of(new SetLessThanMIPSCommand(dest, a, immediate, false));
+        return List.of(new SetLessThanMIPSCommand(dest, a, immediate, false),
+                       new BinaryImmediateMIPSCommand(dest, dest, one, BinaryOperator.XOR));
+    }
+
+    // the condition goes into a flag register, or the float condition bit, and a conditional move picks the
+    // value, one move does when dest already holds either of them
+    private List<MIPSCommand> translateSelectCommand(SelectCommand command){
+        List<MIPSCommand> commandList = new LinkedList<>(registerAllocator.enterCommand(command));
+        List<Variable> temps = new ArrayList<>();
+        Argument aVar = command.getA();
+        Argument bVar = command.getB();
+        String condition = command.getCondition();
+        if (aVar instanceof Constant && bVar instanceof Variable) {
+            Argument temp = aVar;
+            aVar = bVar;
+            bVar = temp;
+            condition = MIRRORED_BRANCHES.get(condition);
+        }
+        Register dest = registerAllocator.getRegister(command.getDest());
+        boolean isFloat = dest.getType().equals(Type.Float);
+        Register a = getOperand(aVar, commandList, temps);
+        Register flag;
+        boolean holds;
+        if (a.getType().equals(Type.Float)) {
+            FloatCompareMIPSCommand compare = new FloatCompareMIPSCommand(a, getOperand(bVar, commandList, temps), condition);
+            commandList.add(compare);
+            flag = null;
+            holds = compare.holdsWhenSet();
+        } else if ((condition.equals("breq") || condition.equals("brneq")) && bVar instanceof Constant constant
+                   && Long.parseLong(constant.getValue()) == 0) {
+            flag = a;
+            holds = condition.equals("brneq");
+        } else {
+            Variable flagVar = getTempVariable(Type.Integer);
+            flag = load(flagVar);
+            temps.add(flagVar);
+            Argument b = bVar instanceof Constant constant && fitsFlagImmediate(condition, constant) ?
+                    bVar : getOperand(bVar, commandList, temps);
+            holds = setFlag(commandList, flag, a, b, condition);
+        }
+        Register ifTrue = getOperand(command.getIfTrue(), commandList, temps);
+        Register ifFalse = getOperand(command.getIfFalse(), commandList, temps);
+        if (ifTrue.getName().equals(dest.getName())) {
+            commandList.add(new ConditionalMoveMIPSCommand(dest, ifFalse, flag, !holds, isFloat));
+        } else if (ifFalse.getName().equals(dest.getName())) {
+            commandList.add(new ConditionalMoveMIPSCommand(dest, ifTrue, flag, holds, isFloat));
+        } else {
+            if (flag != null && flag.getName().equals(dest.getName())) {
+                Variable flagVar = getTempVariable(Type.Integer);
+                Register copy = load(flagVar);
+                temps.add(flagVar);
+                commandList.add(new MoveMIPSCommand(copy, flag, false));
+                flag = copy;
+            }
+            commandList.add(new MoveMIPSCommand(dest, ifFalse, isFloat));
+            commandList.add(new ConditionalMoveMIPSCommand(dest, ifTrue, flag, holds, isFloat));
+        }
+        for (Variable temp : temps)
+            store(temp);
+        commandList.addAll(registerAllocator.exitCommand(command));
+        return commandList;
+    }
+
+    // register of a variable, constants are loaded into a scratch register that is freed with the others
+    private Register getOperand(Argument argument, List<MIPSCommand> commandList, List<Variable> temps){
+        if (argument instanceof Variable var)
+            return registerAllocator.getRegister(var);
+        Variable temp = getTempVariable(argument.getType());
+        Register r = load(temp);
+        temps.add(temp);
+        commandList.add(argument.getType().equals(Type.Float) ? new LoadFloatCommand(r, (Constant) argument)
+                                                               : new LoadIntCommand(r, (Constant) argument));
+        return r;
+    }
+
+    private static boolean fitsFlagImmediate(String condition, Constant constant){
+        long value = Long.parseLong(constant.getValue());
+        if (condition.equals("breq") || condition.equals("brneq"))
+            return value >= 0 && value <= MAX_UNSIGNED_IMMEDIATE;
+        if (condition.equals("brleq") || condition.equals("brgt"))
+            ++value;
+        return value >= MIN_SIGNED_IMMEDIATE && value <= MAX_SIGNED_IMMEDIATE;
+    }
+
+    // flag = a cond b up to its polarity, which is returned: true when a non zero flag means the condition
+    // holds. b is a register or a constant that passed fitsFlagImmediate
+    private static boolean setFlag(List<MIPSCommand> commandList, Register flag, Register a, Argument b, String condition){
+        if (condition.equals("breq") || condition.equals("brneq")) {
+            commandList.add(b instanceof Register r ? new BinaryMIPSCommand(flag, a, r, BinaryOperator.XOR, false)
+                                                    : new BinaryImmediateMIPSCommand(flag, a, (Constant) b, BinaryOperator.XOR));
+            return condition.equals("brneq");
+        }
+        boolean strict = condition.equals("brlt") || condition.equals("brgt");
+        if (b instanceof Register r) {
+            boolean less = condition.equals("brlt") || condition.equals("brgeq");
+            commandList.add(less ? new SetLessThanMIPSCommand(flag, a, r, false) : new SetLessThanMIPSCommand(flag, r, a, false));
+            return strict;
+        }
+        // a <= c and a > c compare against c + 1
+        long value = Long.parseLong(((Constant) b).getValue());
+        boolean plusOne = condition.equals("brleq") || condition.equals("brgt");
+        commandList.add(new SetLessThanMIPSCommand(flag, a, new Constant(String.valueOf(plusOne ? value + 1 : value)), false));
+        return condition.equals("brlt") || condition.equals("brleq");
+    }
+
     private List<MIPSCommand> translateBinaryCommand(BinaryOperatorCommand command) {
         List<MIPSCommand> commandList = new LinkedList<>(registerAllocator.enterCommand(command));
         Argument aVar = command.getA();
@@ -665,6 +1203,29 @@ public class Translator {
         Register a, b;
         Variable aTempVar = null;
 
+        // integer operations with a constant on the right, or on either side when they commute,
+        // skip loading the constant whenever a cheaper instruction sequence exists
+        BinaryOperator op = command.getOp();
+        Argument other = null;
+        Constant constant = null;
+        if (bVar instanceof Constant && aVar instanceof Variable) {
+            other = aVar;
+            constant = (Constant) bVar;
+        } else if (aVar instanceof Constant && bVar instanceof Variable && op != BinaryOperator.SUB && op != BinaryOperator.DIV) {
+            other = bVar;
+            constant = (Constant) aVar;
+        }
+        if (constant != null && constant.getType().equals(Type.Integer) && other.getType().equals(Type.Integer)
+                && command.getDest().getType().equals(Type.Integer)) {
+            List<MIPSCommand> reduced = translateConstantOperand(op, registerAllocator.getRegister(command.getDest()),
+                                                                 registerAllocator.getRegister((Variable) other), constant);
+            if (reduced != null) {
+                commandList.addAll(reduced);
+                commandList.addAll(registerAllocator.exitCommand(command));
+                return commandList;
+            }
+        }
+
 
         if (aVar instanceof Constant) {
             aTempVar = getTempVariable(aVar.getType());
@@ -717,5 +1278,160 @@ public class Translator {
         return commandList;
     }
 
+    private List<MIPSCommand> translateConstantOperand(BinaryOperator op, Register dest, Register x, Constant constant) {
+        Constant immediate = getImmediate(op, constant);
+        if (immediate != null)
+            return List.of(new BinaryImmediateMIPSCommand(dest, x, immediate, op == BinaryOperator.SUB ? BinaryOperator.ADD : op));
+        long value = Long.parseLong(constant.getValue());
+        if (value != (int) value)
+            return null;
+        if (op == BinaryOperator.MUL)
+            return multiplyByConstant(dest, x, (int) value);
+        if (op == BinaryOperator.DIV)
+            return divideByConstant(dest, x, (int) value);
+        return null;
+    }
+
+    // x * c with shifts when |c| is 2^k, 2^a + 2^b or 2^a - 2^b, a negative c negates the result,
+    // null for constants needing a real multiplication
+    private List<MIPSCommand> multiplyByConstant(Register dest, Register x, int c) {
+        List<MIPSCommand> commandList = new LinkedList<>();
+        long magnitude = Math.abs((long) c);
+        if (magnitude == 0) {
+            commandList.add(new LoadIntCommand(dest, new Constant("0")));
+            return commandList;
+        }
+        int high = 63 - Long.numberOfLeadingZeros(magnitude);
+        long above = (1L << (high + 1)) - magnitude;
+        if (Long.bitCount(magnitude) == 1) {
+            if (high != 0)
+                commandList.add(new ShiftMIPSCommand(dest, x, high, "sll"));
+            else if (!dest.equals(x))
+                commandList.add(new MoveMIPSCommand(dest, x, false));
+        } else if (Long.bitCount(magnitude) == 2 || (Long.bitCount(above) == 1 && high < 31)) {
+            // x is read for the last time by the second shift, so dest may share its register
+            boolean sum = Long.bitCount(magnitude) == 2;
+            int low = Long.numberOfTrailingZeros(sum ? magnitude - (1L << high) : above);
+            Variable tempVar = getTempVariable(Type.Integer);
+            Register temp = load(tempVar);
+            commandList.add(new ShiftMIPSCommand(temp, x, sum ? high : high + 1, "sll"));
+            Register lowPart = x;
+            if (low != 0) {
+                commandList.add(new ShiftMIPSCommand(dest, x, low, "sll"));
+                lowPart = dest;
+            }
+            commandList.add(new BinaryMIPSCommand(dest, temp, lowPart, sum ? BinaryOperator.ADD : BinaryOperator.SUB, false));
+            store(tempVar);
+        } else {
+            return null;
+        }
+        if (c < 0)
+            commandList.add(new BinaryMIPSCommand(dest, ZERO, dest, BinaryOperator.SUB, false));
+        return commandList;
+    }
+
+    // x / d rounding toward zero: a power of two shifts after adding 2^k - 1 to negative dividends,
+    // any other divisor takes the high word of a multiplication by its magic number
+    private List<MIPSCommand> divideByConstant(Register dest, Register x, int d) {
+        if (d == 0 || d == Integer.MIN_VALUE)
+            return null;
+        List<MIPSCommand> commandList = new LinkedList<>();
+        int magnitude = Math.abs(d);
+        if (magnitude == 1) {
+            if (d < 0)
+                commandList.add(new BinaryMIPSCommand(dest, ZERO, x, BinaryOperator.SUB, false));
+            else if (!dest.equals(x))
+                commandList.add(new MoveMIPSCommand(dest, x, false));
+            return commandList;
+        }
+
+        Variable tempVar = getTempVariable(Type.Integer);
+        Register temp = load(tempVar);
+        if ((magnitude & (magnitude - 1)) == 0) {
+            int k = Integer.numberOfTrailingZeros(magnitude);
+            if (k == 1) {
+                commandList.add(new ShiftMIPSCommand(temp, x, 31, "srl"));
+            } else {
+                commandList.add(new ShiftMIPSCommand(temp, x, 31, "sra"));
+                commandList.add(new ShiftMIPSCommand(temp, temp, 32 - k, "srl"));
+            }
+            commandList.add(new BinaryMIPSCommand(temp, x, temp, BinaryOperator.ADD, false));
+            commandList.add(new ShiftMIPSCommand(dest, temp, k, "sra"));
+            if (d < 0)
+                commandList.add(new BinaryMIPSCommand(dest, ZERO, dest, BinaryOperator.SUB, false));
+        } else {
+            int[] magic = getMagic(d);
+            commandList.add(new LoadIntCommand(temp, new Constant(String.valueOf(magic[0]))));
+            commandList.add(new MultiplyMIPSCommand(x, temp));
+            commandList.add(new MoveFromHiLoCommand(temp, true));
+            if (d > 0 && magic[0] < 0)
+                commandList.add(new BinaryMIPSCommand(temp, temp, x, BinaryOperator.ADD, false));
+            else if (d < 0 && magic[0] > 0)
+                commandList.add(new BinaryMIPSCommand(temp, temp, x, BinaryOperator.SUB, false));
+            if (magic[1] > 0)
+                commandList.add(new ShiftMIPSCommand(temp, temp, magic[1], "sra"));
+            // one more for negative quotients, x isn't read anymore so dest may share its register
+            commandList.add(new ShiftMIPSCommand(dest, temp, 31, "srl"));
+            commandList.add(new BinaryMIPSCommand(dest, temp, dest, BinaryOperator.ADD, false));
+        }
+        store(tempVar);
+        return commandList;
+    }
+
+    // Hacker's Delight, figure 10-1: multiplier and shift of signed division by d, for 2 <= |d| < 2^31
+    private static int[] getMagic(int d) {
+        final long two31 = 1L << 31;
+        long ad = Math.abs((long) d);
+        long t = two31 + (d < 0 ? 1 : 0);
+        long anc = t - 1 - t % ad;
+        int p = 31;
+        long q1 = two31 / anc, r1 = two31 - q1 * anc;
+        long q2 = two31 / ad, r2 = two31 - q2 * ad;
+        long delta;
+        do {
+            ++p;
+            q1 *= 2;
+            r1 *= 2;
+            if (r1 >= anc) {
+                ++q1;
+                r1 -= anc;
+            }
+            q2 *= 2;
+            r2 *= 2;
+            if (r2 >= ad) {
+                ++q2;
+                r2 -= ad;
+            }
+            delta = ad - r2;
+        } while (q1 < delta || (q1 == delta && r1 == 0));
+        long m = q2 + 1;
+        return new int[]{(int) (d < 0 ? -m : m), p - 32};
+    }
+
+    private static boolean fitsImmediate(Constant constant, long min, long max) {
+        if (!constant.getType().equals(Type.Integer))
+            return false;
+        long value = Long.parseLong(constant.getValue());
+        return min <= value && value <= max;
+    }
+
+    // immediate operand of `x op constant`, subtraction adds the negated constant,
+    // null when there's no immediate instruction for op or the constant doesn't fit
+    private static Constant getImmediate(BinaryOperator op, Constant constant) {
+        switch (op) {
+            case ADD:
+                return fitsImmediate(constant, MIN_SIGNED_IMMEDIATE, MAX_SIGNED_IMMEDIATE) ? constant : null;
+            case SUB:
+                if (!fitsImmediate(constant, -MAX_SIGNED_IMMEDIATE, -MIN_SIGNED_IMMEDIATE))
+                    return null;
+                return new Constant(String.valueOf(-Long.parseLong(constant.getValue())));
+            case AND:
+            case OR:
+                return fitsImmediate(constant, 0, MAX_UNSIGNED_IMMEDIATE) ? constant : null;
+            default:
+                return null;
+        }
+    }
+
 
 }
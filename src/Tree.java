@@ -49,6 +49,11 @@ public class Tree extends IRBaseListener {
         currClass.addFunction(currFunction);
     }
 
+    @Override
+    public void exitFunction(IRParser.FunctionContext ctx) {
+        currFunction.freeze();
+    }
+
     @Override
     public void enterArgs_list(IRParser.Args_listContext ctx) {
         for (int i = 0; i < ctx.ID().size(); i += 2) {